@@ -0,0 +1,92 @@
+package com.github.epivitae.fia;
+
+import ij.io.FileSaver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Timeout;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchRunner on a folder of drifting synthetic movies, reported per frame. Several files share the frame pool at
+ * once (files = threads), so with warmStart every file's warm-start runs compete for the same workers:
+ *   java -jar benchmarks/target/benchmarks.jar Batch -p mode=Dense -p warmStart=true
+ * An invocation fails unless every file is aligned, and times out instead of hanging if the runs starve each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Timeout(time = 2, timeUnit = TimeUnit.MINUTES)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class BatchBenchmark {
+
+    private static final int FILES = 4, FRAMES = 100;
+
+    @Param({"Legacy-Translation", "Legacy-Affine", "Dense"})
+    public String mode;
+
+    @Param({"false", "true"})
+    public boolean warmStart;
+
+    @Param({"4"})
+    public int threads;
+
+    @Param({"256"})
+    public int size;
+
+    private File input, output;
+    private List<File> files;
+    private BatchRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        if (!Aligner.loadOpenCV()) throw new IllegalStateException("OpenCV natives could not be loaded");
+        input = Files.createTempDirectory("fia-batch-in").toFile();
+        output = Files.createTempDirectory("fia-batch-out").toFile();
+        for (int i = 0; i < FILES; i++) {
+            if (!new FileSaver(Frames.movie(size, 16, FRAMES, 3 + i)).saveAsTiff(new File(input, "movie" + i + ".tif").getPath())) throw new IOException("Can't write " + input);
+        }
+        files = BatchRunner.listFiles(input, "*.tif");
+        AlignParams p = new AlignParams();
+        p.legacy = mode.startsWith("Legacy-");
+        p.mode = p.legacy ? mode.substring("Legacy-".length()) : mode;
+        p.warmStart = warmStart;
+        p.threads = threads;
+        runner = new BatchRunner(p, output, threads, 0, 0.75);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File dir : new File[]{input, output}) {
+            File[] all = dir.listFiles();
+            if (all != null) for (File f : all) f.delete();
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES * FRAMES)
+    public List<BatchRunner.Report> batch() throws Exception {
+        List<BatchRunner.Report> reports = runner.run(files);
+        for (BatchRunner.Report r : reports) if (!r.status.equals("ok")) throw new IllegalStateException(r.file.getName() + ": " + r.status);
+        return reports;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.epivitae.fia;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ImageJ/OpenCV bridge of the OpenCV engines: imagePlusToMat into a reused Mat, updateImageProcessor back
+ * from a Mat of the frame's type, and createSuperReference (mean of DEPTH frames, binned, normalized, blurred
+ * and CLAHE-equalized, as the Dense reference):
+ *   java -jar benchmarks/target/benchmarks.jar Conversion -p bitDepth=16
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class ConversionBenchmark {
+
+    private static final int DEPTH = 5;
+
+    @Param({"512", "1024", "2048", "4096"})
+    public int size;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    private ImagePlus movie;
+    private ImageProcessor ip;
+    private AlignmentRun run;
+    private Mat dst, src;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (!Aligner.loadOpenCV()) throw new IllegalStateException("OpenCV natives could not be loaded");
+        movie = Frames.movie(size, bitDepth, DEPTH, 4);
+        ip = movie.getStack().getProcessor(1);
+        AlignParams p = new AlignParams();
+        p.mode = "Dense";
+        run = new AlignmentRun(movie, p, null, Frames.SILENT);
+        dst = new Mat();
+        src = run.imagePlusToMat(ip, new Mat());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dst.release(); src.release();
+        run.mats.releaseAll();
+    }
+
+    /** ImageProcessor pixels into a native Mat whose buffer is reused. */
+    @Benchmark
+    public Mat imagePlusToMat() {
+        return run.imagePlusToMat(ip, dst);
+    }
+
+    /** Mat of the processor's type back into its pixel array (no conversion). */
+    @Benchmark
+    public Object updateImageProcessor() {
+        run.updateImageProcessor(ip, src);
+        return ip.getPixels();
+    }
+
+    /** Dense super reference from the first DEPTH frames. */
+    @Benchmark
+    public int createSuperReference() {
+        Mat ref = run.createSuperReference(movie, 1, 1, DEPTH, DEPTH);
+        int type = ref.type();
+        ref.release(); run.superMean.release();
+        return type;
+    }
+}
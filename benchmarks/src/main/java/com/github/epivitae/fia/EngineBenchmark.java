@@ -0,0 +1,69 @@
+package com.github.epivitae.fia;
+
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole alignment runs through Aligner on a drifting synthetic movie, reported per frame: the OpenCV engines
+ * (Rigid and Affine use ECC; Elastic is Farneback flow against the reference frame, Dense against the preprocessed
+ * super reference) and the Legacy engine's two transforms (Legacy-Translation, Legacy-Affine; its Rigid runs as
+ * Affine). One worker thread, so the numbers compare engines rather than cores:
+ *   java -jar benchmarks/target/benchmarks.jar Engine -p mode=Dense -p size=512
+ * Each run includes the reference preparation and the output copy, as a user would see them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx4g"})
+public class EngineBenchmark {
+
+    private static final int FRAMES = 10;
+
+    @Param({"Rigid", "Affine", "Elastic", "Dense", "Legacy-Translation", "Legacy-Affine"})
+    public String mode;
+
+    @Param({"256", "512", "1024"})
+    public int size;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    @Param({"0.5", "4"})
+    public double shift;
+
+    private ImagePlus movie;
+    private Aligner aligner;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (!Aligner.loadOpenCV()) throw new IllegalStateException("OpenCV natives could not be loaded");
+        movie = Frames.movie(size, bitDepth, FRAMES, shift);
+        AlignParams p = new AlignParams();
+        p.legacy = mode.startsWith("Legacy-");
+        p.mode = p.legacy ? mode.substring("Legacy-".length()) : mode;
+        p.threads = 1;
+        aligner = new Aligner(p);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public AlignResult align() throws Exception {
+        return aligner.align(movie, Frames.SILENT);
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.epivitae.fia;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Synthetic fluorescence-like frames for the benchmarks: smooth random blobs over a dim background, plus noise. */
+final class Frames {
+
+    private Frames() {}
+
+    /** Blob pattern (seeded by size) shifted by (dx, dy) px, as a float frame with values of about 100-2000. */
+    static FloatProcessor blobs(int size, double dx, double dy) {
+        Random r = new Random(size);
+        float[] px = new float[size * size];
+        Arrays.fill(px, 100f);
+        int n = size * size / 1500;
+        for (int b = 0; b < n; b++) {
+            double cx = r.nextDouble() * size, cy = r.nextDouble() * size, sg = 3 + r.nextDouble() * 8, amp = 200 + r.nextDouble() * 1500;
+            for (int y = Math.max(0, (int) (cy - 4 * sg)); y < Math.min(size, cy + 4 * sg); y++)
+                for (int x = Math.max(0, (int) (cx - 4 * sg)); x < Math.min(size, cx + 4 * sg); x++)
+                    px[y * size + x] += (float) (amp * Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) / (2 * sg * sg)));
+        }
+        FloatProcessor fp = new FloatProcessor(size, size, px);
+        if (dx != 0 || dy != 0) { fp.setInterpolationMethod(ImageProcessor.BILINEAR); fp.translate(dx, dy); }
+        return fp;
+    }
+
+    /** blobs() with Gaussian noise, converted to bitDepth (8: scaled to 0-255; 16: unscaled; 32: as is). */
+    static ImageProcessor frame(int size, int bitDepth, double dx, double dy, long seed) {
+        FloatProcessor fp = blobs(size, dx, dy);
+        float[] px = (float[]) fp.getPixels();
+        Random r = new Random(seed);
+        for (int i = 0; i < px.length; i++) px[i] += (float) (r.nextGaussian() * 10);
+        switch (bitDepth) {
+            case 8: fp.setMinAndMax(0, 2000); return fp.convertToByteProcessor(true);
+            case 16: return fp.convertToShortProcessor(false);
+            default: return fp;
+        }
+    }
+
+    /**
+     * Single-channel movie of frames timepoints drifting on a circle of radius shift px (one turn per movie),
+     * so frame-to-frame motion and the offset from the first frame both scale with shift.
+     */
+    static ImagePlus movie(int size, int bitDepth, int frames, double shift) {
+        ImageStack stack = new ImageStack(size, size);
+        for (int t = 0; t < frames; t++) {
+            double a = 2 * Math.PI * t / frames;
+            stack.addSlice(frame(size, bitDepth, shift * Math.sin(a), shift * (1 - Math.cos(a)), t));
+        }
+        ImagePlus imp = new ImagePlus("benchmark", stack);
+        imp.setDimensions(1, 1, frames);
+        return imp;
+    }
+
+    /** Aligner listener that reports nothing and never cancels. */
+    static final Aligner.Listener SILENT = new Aligner.Listener() {
+        @Override public void progress(int percent) {}
+        @Override public boolean cancelled() { return false; }
+    };
+}
@@ -0,0 +1,92 @@
+package com.github.epivitae.fia;
+
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LegacyAligner.estimate and warp on one frame, as the engine calls them: a prepared reference, a per-thread
+ * workspace, convergence to 1e-7 within 200 iterations. Frame size, bit depth, motion (px) and transform vary:
+ *   java -jar benchmarks/target/benchmarks.jar LegacyAligner -p size=1024 -p shift=4
+ * Unlike LegacyKernels the estimate runs to convergence, so larger shifts also mean more iterations.
+ * estimateAllocating and warpAllocating run the same work through the overloads without a workspace, which
+ * allocate every frame-sized buffer per call. Run with the GC profiler to compare gc.alloc.rate.norm (bytes per call):
+ *   java -jar benchmarks/target/benchmarks.jar "LegacyAlignerBenchmark.(estimate|warp)" -p size=512 -p bitDepth=8 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LegacyAlignerBenchmark {
+
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"0.5", "4", "16"})
+    public double shift;
+
+    @Param({"Translation", "Affine"})
+    public String transform;
+
+    private ImageProcessor frame, source;
+    private LegacyAligner.Reference ref;
+    private LegacyAligner.Workspace ws;
+    private double[][] wp, estimated;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int type = transform.equals("Affine") ? LegacyAligner.AFFINE : LegacyAligner.TRANSLATION;
+        ref = LegacyAligner.prepareReference(Frames.frame(size, bitDepth, 0, 0, 0).convertToFloat(), type, 1);
+        source = Frames.frame(size, bitDepth, shift * 0.6, -shift * 0.8, 1);
+        frame = source.duplicate();
+        ws = new LegacyAligner.Workspace();
+        wp = type == LegacyAligner.AFFINE ? new double[2][3] : new double[2][1];
+        estimated = type == LegacyAligner.AFFINE ? new double[2][3] : new double[2][1];
+        LegacyAligner.estimate(source, ref, 200, 1e-7, ws, estimated);
+    }
+
+    /** Pyramid, iterations to convergence from the identity. */
+    @Benchmark
+    public int estimate() {
+        for (double[] row : wp) Arrays.fill(row, 0.0);
+        return LegacyAligner.estimate(source, ref, 200, 1e-7, ws, wp);
+    }
+
+    /** As estimate(), with a fresh workspace per call (the allocating overload older callers use). */
+    @Benchmark
+    public double[][] estimateAllocating() {
+        return LegacyAligner.estimate(source, ref, 200, 1e-7);
+    }
+
+    /** In-place bilinear resampling by the estimated transform (the input is refreshed every invocation). */
+    @Benchmark
+    public Object warp() {
+        System.arraycopy(source.getPixels(), 0, frame.getPixels(), 0, size * size);
+        LegacyAligner.warp(frame, estimated, ref.transformType, ws);
+        return frame.getPixels();
+    }
+
+    /** As warp(), into a new output processor per call (the allocating overload older callers use). */
+    @Benchmark
+    public ImageProcessor warpAllocating() {
+        return LegacyAligner.warp(source, estimated, ref.transformType);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.epivitae.fia;
+
+import ij.process.FloatProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar vs Vector API kernels of the Legacy engine (see PixelKernels) on square frames of 512-4096 px.
+ * Every kernels/size pair runs in its own JVM started with the Vector API module; "scalar" switches the SIMD
+ * kernels off with fia.simd=false, so both run the same code otherwise. Needs JDK 17+:
+ *   java -jar benchmarks/target/benchmarks.jar LegacyKernels
+ * The estimates use a fixed iteration budget (tolerance 0), so the work per call does not depend on convergence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", "-Xmx4g"})
+public class LegacyKernelsBenchmark {
+
+    @Param({"512", "1024", "2048", "4096"})
+    public int size;
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private static final int ITERATIONS = 10;
+
+    private FloatProcessor reference, frame;
+    private LegacyAligner.Reference refTranslation, refAffine;
+    private LegacyAligner.Workspace ws;
+    private final double[][] wpTranslation = new double[2][1], wpAffine = new double[2][3];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Before LegacyAligner is initialized: the kernels are picked once per JVM
+        System.setProperty("fia.simd", String.valueOf(kernels.equals("vector")));
+        if (kernels.equals("vector") && VectorSupport.kernels() == null) throw new IllegalStateException(VectorSupport.describe());
+        reference = Frames.blobs(size, 0, 0);
+        frame = Frames.blobs(size, 2.3, -1.6);
+        refTranslation = LegacyAligner.prepareReference(reference, LegacyAligner.TRANSLATION, 1);
+        refAffine = LegacyAligner.prepareReference(reference, LegacyAligner.AFFINE, 1);
+        ws = new LegacyAligner.Workspace();
+    }
+
+    /** Gradient, derivative, steepest-descent and Hessian kernels, plus the 2x pyramid. */
+    @Benchmark
+    public LegacyAligner.Reference prepareReferenceAffine() {
+        return LegacyAligner.prepareReference(reference, LegacyAligner.AFFINE, 1);
+    }
+
+    /** Fused translation residual, ITERATIONS per pyramid level. */
+    @Benchmark
+    public int estimateTranslation() {
+        wpTranslation[0][0] = 0; wpTranslation[1][0] = 0;
+        return LegacyAligner.estimate(frame, refTranslation, ITERATIONS, 0.0, ws, wpTranslation);
+    }
+
+    /** Fused affine residual (gathered bilinear samples), ITERATIONS per pyramid level. */
+    @Benchmark
+    public int estimateAffine() {
+        for (double[] row : wpAffine) Arrays.fill(row, 0.0);
+        return LegacyAligner.estimate(frame, refAffine, ITERATIONS, 0.0, ws, wpAffine);
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.epivitae.fia;
+
+import ij.gui.Roi;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Settings of one alignment run, with the controller's defaults.
+ * Plain fields, so scripts and the batch runner can set only what they need; copy() before changing
+ * settings that are shared between runs.
+ */
+public class AlignParams implements Cloneable {
+
+    /** Translation, Rigid, Affine, Homography, Elastic or Dense. */
+    public String mode = "Rigid";
+    /** Global modes: Legacy (Image Stabilizer) or Phase Corr engine instead of OpenCV ECC. */
+    public boolean legacy, phase;
+    /** ECC: seed each frame with an FFT phase-correlation shift. */
+    public boolean coarseInit;
+    /** Global modes: estimate inside this area ROI only (null = full frame). */
+    public Roi roi;
+    /** Reference timepoint (1-based). */
+    public int refT = 1;
+
+    // Global modes
+    public int maxIter = 200;
+    /** Precision 10^-eps. */
+    public int eps = 7;
+    public double alpha = 0.90;
+    public int pyramid = 1;
+    /** OpenCV engine: solve ECC coarse-to-fine over the pyramid levels (off = single scale, full resolution). */
+    public boolean eccPyramid;
+
+    // Elastic / Dense
+    public int winSize = 5;
+    public int refDepth = 5;
+    /** Dense: update the super reference every refRefresh frames (0 = fixed). */
+    public int refRefresh = 0;
+    /** Dense: tile size in pixels (0 = untiled). */
+    public int tileSize = 0;
+    public int flowLevels = 3, flowIters = 3, polyN = 5;
+    /** Flow computed at 1/flowScale resolution (1, 2 or 4). */
+    public int flowScale = 1;
+    /** Dense: DISOpticalFlow preset, or -1 for Farneback. */
+    public int disPreset = -1;
+    /** Dense: seed each Farneback flow with the previous frame's (untiled only). Legacy: seed each transform with one extrapolated from the previous frames. */
+    public boolean warmStart;
+    /**
+     * Warm start: frames per run. Every run starts cold and its runs are the same for any thread count, so the result is too.
+     * Longer runs start cold less often (faster), but a warm seed can drift further before the next cold start re-anchors it.
+     */
+    public int warmRun = 32;
+    /** Remap interpolation (Imgproc.INTER_CUBIC or INTER_LINEAR). */
+    public int interp = Imgproc.INTER_CUBIC;
+
+    // Adaptive estimation (all modes except tiled Dense)
+    /** Estimate every keyframeInterval-th timepoint in full and interpolate between them (0 or 1 = every timepoint). */
+    public int keyframeInterval = 0;
+    /** Timepoints whose cheap probe shift strays from the interpolated path by more than this (px) are estimated in full. */
+    public double motionThreshold = 1.0;
+
+    // Execution
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public int ioThreads = 2;
+    public boolean verbose;
+    /** Collect the per-frame matrices (global modes) into AlignResult.getMatrix(). */
+    public boolean saveMatrix;
+    /** Global modes: warp frames on demand instead of holding an aligned copy. */
+    public boolean virtualOutput;
+    /** Stream the aligned stack to this TIFF/.raw path as frames finish (null = keep in memory). */
+    public String streamPath;
+
+    public boolean isGlobal() { return !mode.equals("Elastic") && !mode.equals("Dense"); }
+
+    public AlignParams copy() {
+        try { return (AlignParams) clone(); } catch (CloneNotSupportedException e) { throw new AssertionError(e); }
+    }
+}
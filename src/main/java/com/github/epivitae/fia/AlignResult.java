@@ -0,0 +1,37 @@
+package com.github.epivitae.fia;
+
+import ij.ImagePlus;
+
+import java.util.Collections;
+import java.util.List;
+
+/** Outcome of one alignment run: the aligned image, the optional matrix CSV lines and run statistics. */
+public class AlignResult {
+
+    private final ImagePlus image;
+    private final List<String> matrix;
+    private final int timepoints;
+    private final long bytes, nanos;
+
+    AlignResult(ImagePlus image, List<String> matrix, int timepoints, long bytes, long nanos) {
+        this.image = image; this.matrix = Collections.unmodifiableList(matrix);
+        this.timepoints = timepoints; this.bytes = bytes; this.nanos = nanos;
+    }
+
+    /** Aligned image (virtual when Virtual Output or streaming was used), or null if a stream failed or the run was cancelled. */
+    public ImagePlus getImage() { return image; }
+
+    /** Matrix CSV lines, header first (empty unless saveMatrix was set and the mode is global). */
+    public List<String> getMatrix() { return matrix; }
+
+    public int getTimepoints() { return timepoints; }
+
+    /** Pixel bytes of the input stack. */
+    public long getBytes() { return bytes; }
+
+    public double getSeconds() { return nanos / 1e9; }
+
+    public double getFramesPerSecond() { return timepoints / Math.max(1e-9, getSeconds()); }
+
+    public double getMegabytesPerSecond() { return bytes / 1048576.0 / Math.max(1e-9, getSeconds()); }
+}
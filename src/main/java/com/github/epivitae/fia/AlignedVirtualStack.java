@@ -0,0 +1,74 @@
+package com.github.epivitae.fia;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lazily aligned view of a source stack.
+ * Only the per-timepoint warps are stored; each slice is warped from the source straight into a
+ * new processor when ImageJ asks for it, with a small LRU cache of recently rendered slices.
+ * Slices are in ImageJ's default czt order.
+ */
+public class AlignedVirtualStack extends VirtualStack {
+
+    private final ImageStack source;
+    private final int channels, slices, frames;
+    private final FrameWarp[] warps;
+    private final Map<Integer, ImageProcessor> cache;
+
+    /** Writes the aligned version of src into dst; dst may be src itself (in-place). */
+    public interface FrameWarp {
+        void apply(ImageProcessor src, ImageProcessor dst);
+    }
+
+    /**
+     * @param cacheSize number of rendered slices kept in memory
+     */
+    public AlignedVirtualStack(ImageStack source, int channels, int slices, int frames, int cacheSize) {
+        super(source.getWidth(), source.getHeight());
+        this.source = source;
+        this.channels = channels; this.slices = slices; this.frames = frames;
+        this.warps = new FrameWarp[timepoints() + 1];
+        this.cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) { return size() > cacheSize; }
+        };
+    }
+
+    /** Sets the warp applied to every channel of timepoint t (null = unchanged). */
+    public void setFrameWarp(int t, FrameWarp warp) {
+        warps[t] = warp;
+        synchronized (this) { cache.clear(); }
+    }
+
+    /** Timepoints follow the aligner: frames when there are several, slices otherwise. */
+    public int timepoints() { return frames > 1 ? frames : slices; }
+
+    private int timepointOf(int n) {
+        int i = n - 1;
+        return frames > 1 ? i / (channels * slices) + 1 : (i / channels) % slices + 1;
+    }
+
+    @Override
+    public synchronized ImageProcessor getProcessor(int n) {
+        ImageProcessor ip = cache.get(n);
+        if (ip == null) {
+            ImageProcessor src = source.getProcessor(n);
+            FrameWarp warp = warps[timepointOf(n)];
+            if (warp == null) ip = src.duplicate();
+            else { ip = src.createProcessor(getWidth(), getHeight()); warp.apply(src, ip); }
+            cache.put(n, ip);
+        }
+        // Hand out a copy so edits to the displayed slice never leak into the cache
+        return ip.duplicate();
+    }
+
+    @Override public int getSize() { return source.getSize(); }
+    @Override public String getSliceLabel(int n) { return source.getSliceLabel(n); }
+    @Override public int getBitDepth() { return source.getBitDepth(); }
+    @Override public String getDirectory() { return null; }
+    @Override public String getFileName(int n) { return null; }
+}
@@ -0,0 +1,73 @@
+package com.github.epivitae.fia;
+
+import ij.IJ;
+import ij.ImagePlus;
+import nu.pattern.OpenCV;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Headless alignment engine: no GUI, no current image.
+ * <pre>
+ *   AlignParams p = new AlignParams(); p.mode = "Dense";
+ *   AlignResult r = new Aligner(p).align(imp);
+ *   r.getImage().show();
+ * </pre>
+ * An Aligner is immutable and thread-safe: every align() call gets its own run state (it copies the params),
+ * so one instance can align several images at once. Runs use their own frame pool unless one is shared
+ * through the constructor, as the batch runner does.
+ */
+public class Aligner {
+
+    /** Progress and cancellation hooks of a run; both are called from the aligning thread. */
+    public interface Listener {
+        void progress(int percent);
+        boolean cancelled();
+    }
+
+    private static final Listener SILENT = new Listener() {
+        @Override public void progress(int percent) {}
+        @Override public boolean cancelled() { return false; }
+    };
+
+    private static Boolean openCVLoaded;
+
+    private final AlignParams params;
+    private final ForkJoinPool pool;
+
+    public Aligner(AlignParams params) { this(params, null); }
+
+    /**
+     * @param pool frame pool shared with other runs (not shut down by the run), or null for a private one sized by params.threads
+     */
+    public Aligner(AlignParams params, ForkJoinPool pool) {
+        this.params = params.copy();
+        this.pool = pool;
+    }
+
+    public AlignResult align(ImagePlus imp) throws Exception { return align(imp, SILENT); }
+
+    public AlignResult align(ImagePlus imp, Listener listener) throws Exception {
+        if (!params.legacy && !loadOpenCV()) throw new IllegalStateException("OpenCV is not available; only the Legacy engine can run");
+        // Frames reach OpenCV as single-channel Mats; only the Legacy warp handles packed RGB
+        if (imp.getBitDepth() == 24 && !(params.legacy && params.isGlobal())) throw new IllegalArgumentException("RGB images need the Legacy engine in a global mode; split the channels first");
+        return new AlignmentRun(imp, params.copy(), pool, listener).run();
+    }
+
+    /** Loads the bundled OpenCV natives once; false if they can't be loaded (Legacy engine only). */
+    public static synchronized boolean loadOpenCV() {
+        if (openCVLoaded == null) {
+            try {
+                OpenCV.loadShared();
+                IJ.log("FIA: OpenCV (Offline) loaded successfully.");
+                openCVLoaded = true;
+            } catch (Throwable e) {
+                IJ.log("FIA Warning: OpenCV failed to load (" + e.getMessage() + "). Legacy mode only.");
+                openCVLoaded = false;
+            }
+        }
+        return openCVLoaded;
+    }
+
+    static synchronized boolean isOpenCVLoaded() { return openCVLoaded != null && openCVLoaded; }
+}
@@ -0,0 +1,1163 @@
+package com.github.epivitae.fia;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.CLAHE;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.DISOpticalFlow;
+import org.opencv.video.Video;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+/**
+ * State and stages of one alignment run (see Aligner). Setup happens on the calling thread; frames are aligned on the
+ * frame pool, with the load and write stages on their own I/O threads. Not reusable: one instance per align() call.
+ */
+class AlignmentRun {
+    ImagePlus srcImp, resImp; String mode; boolean isLegacy, isPhase, coarseInit, eccPyramid; 
+    int maxIter, eps, winSize, pyr, refT;
+    int refDepth, refRefresh, tileSize, flowLevels, flowIters, polyN, flowScale, disPreset, interp, threads; 
+    double alpha; boolean verbose, saveMatrix, virtualOutput, warmStart; int warmRun;
+    String streamPath; int ioThreads; // Stream to File: output path (null = off); load/write threads
+    List<String> matrixLog = new ArrayList<>();
+    Mat gridX, gridY;         // Full-resolution pixel coordinates
+    Mat flowGridX, flowGridY; // Pixel coordinates at flow resolution (the full grid when flowScale == 1)
+    Size flowSize;            // Frame size the flow is computed at
+
+    // Shared run state (read-only once the frame loop starts)
+    ImageStack resStack; ForkJoinPool pool;
+    final ForkJoinPool sharedPool;     // Batch: frame pool shared between runs, never shut down here
+    final Aligner.Listener listener;
+    final AtomicLong bridgeBytes = new AtomicLong(); // Bytes copied between ImageJ pixel arrays and Mats (JNI put/get)
+    AlignedVirtualStack virtualStack; // Virtual output: records warps instead of applying them
+    final MatPool mats = new MatPool();
+    final ThreadLocal<CLAHE> clahe = ThreadLocal.withInitial(() -> Imgproc.createCLAHE(4.0, new Size(8, 8)));
+    final ThreadLocal<DISOpticalFlow> dis = ThreadLocal.withInitial(() -> DISOpticalFlow.create(disPreset)); // Dense with DIS (disPreset >= 0)
+    int channels, refChannel;
+    ImageProcessor ipRef;
+    LegacyAligner.Reference legacyRef;
+    final ThreadLocal<LegacyAligner.Workspace> legacyWorkspace = ThreadLocal.withInitial(LegacyAligner.Workspace::new);
+    Mat denseSuperRef, elasticRef;
+    Mat superMean; // Dense: float mean behind denseSuperRef, updated between blocks when refRefresh > 0
+    PhaseCorrelator phase;
+    Roi roi;
+    Rectangle region; // Estimation region (global modes), null = full frame
+    Mat regionMask;   // 8-bit mask inside region for non-rectangular ROIs (ECC, phase correlation), null = all
+    final AtomicInteger coldStarts = new AtomicInteger();
+    final AtomicLong legacyIterations = new AtomicLong();     // Legacy: iterations summed over estimated frames
+    final AtomicInteger legacyFrames = new AtomicInteger();
+    boolean isGlobal, isEcc; int motion;
+    Mat[] tplPyr, maskPyr; TermCriteria[] terms; // ECC template pyramid and per-level budgets
+
+    // Adaptive estimation: full estimates every keyframes timepoints (0 = off) and where the probe shift leaves the path
+    int keyframes; double motionThreshold;
+    PhaseCorrelator probe; Size probeSize; double probeScaleX, probeScaleY;
+    final AtomicInteger fullEstimates = new AtomicInteger();
+
+    // Pipeline: load (ioThreads) -> estimate/warp (frame workers) -> emit (StackWriter). Timepoint t may be computed once
+    // loaded[t] is open; the window bounds loaded-but-unemitted timepoints, so loading runs only a little ahead.
+    CountDownLatch[] loaded; Semaphore window; ExecutorService loaders; volatile Throwable loadFailure;
+    StackWriter writer; boolean evict; // Streaming drops emitted frames from the working stack
+    int pagesPerTimepoint, lookahead;
+    final AtomicLong loadNanos = new AtomicLong(), computeNanos = new AtomicLong(), aheadSum = new AtomicLong(), writeQueueSum = new AtomicLong();
+    final AtomicInteger loadedCount = new AtomicInteger(), emittedCount = new AtomicInteger();
+
+    /** Warm start state of one run of consecutive frames: the Dense flow or the Legacy transform of the frames before. */
+    class WarmChain {
+        final Mat flow = new Mat(); // Flow of the previous frame in this run
+        boolean warm;               // flow is valid as an initial guess
+        double residual;            // Running mean residual of accepted flows (8-bit grey levels)
+        double[][] wp, prevWp;      // Legacy: the last two solutions (full-frame coordinates), null until known
+        void release() { flow.release(); }
+
+        /** Legacy seed: the previous solution moved on by the last frame-to-frame change (constant velocity). */
+        double[][] predict() {
+            if (wp == null) return null;
+            double[][] p = new double[2][wp[0].length];
+            for (int r=0; r<2; r++) for (int c=0; c<p[r].length; c++) p[r][c] = prevWp == null ? wp[r][c] : 2 * wp[r][c] - prevWp[r][c];
+            return p;
+        }
+
+        /** Records a Legacy solution, or null for a frame that failed (the next one starts cold). */
+        void record(double[][] solution) { prevWp = solution == null ? null : wp; wp = solution; }
+    }
+
+    /** Adaptive estimation state of one timepoint of a keyframe segment. */
+    class Estimate {
+        double[] probe;  // Probe shift {dx, dy} in full-resolution pixels
+        boolean full;    // Estimated in full; otherwise interpolated between a and b at s
+        double[] params; // Global: warp elements (ECC/Phase: 2x3 or 3x3 matrix, Legacy: wp rows)
+        Mat flow;        // Elastic/Dense: flow field at flow resolution
+        Estimate a, b; double s;
+        void release() { if (flow != null) flow.release(); }
+    }
+    
+    /**
+     * @param sharedPool frame pool shared with other runs, or null to create one sized by p.threads
+     */
+    AlignmentRun(ImagePlus imp, AlignParams p, ForkJoinPool sharedPool, Aligner.Listener listener) {
+        this.srcImp = imp; this.mode = p.mode; this.isLegacy = p.legacy; this.isPhase = p.phase; this.coarseInit = p.coarseInit; this.eccPyramid = p.eccPyramid; this.roi = p.roi;
+        this.maxIter = p.maxIter; this.eps = p.eps; this.winSize = p.winSize; this.alpha = p.alpha; this.pyr = p.pyramid; this.refT = Math.max(1, p.refT);
+        this.refDepth = p.refDepth; this.refRefresh = p.refRefresh; this.tileSize = mode.equals("Dense") ? p.tileSize : 0; this.flowLevels = p.flowLevels; this.flowIters = p.flowIters; this.polyN = p.polyN; this.disPreset = p.disPreset; this.interp = p.interp;
+        this.threads = Math.max(1, sharedPool != null ? sharedPool.getParallelism() : p.threads);
+        // The window is given in full-resolution pixels; keep its physical size on a binned frame
+        this.flowScale = Math.max(1, p.flowScale); if (this.flowScale > 1) this.winSize = Math.max(3, Math.round((float) p.winSize / this.flowScale));
+        this.verbose = p.verbose; this.saveMatrix = p.saveMatrix; this.virtualOutput = p.virtualOutput && p.isGlobal(); this.warmStart = p.warmStart && ((mode.equals("Dense") && disPreset < 0 && tileSize == 0) || (p.legacy && p.isGlobal()));
+        this.streamPath = p.streamPath; this.ioThreads = Math.max(1, p.ioThreads);
+        // Tiled flows never exist at full frame size, so there is nothing to interpolate; adaptive replaces warm start
+        this.keyframes = (p.keyframeInterval > 1 && tileSize == 0) ? p.keyframeInterval : 0; this.motionThreshold = Math.max(0, p.motionThreshold);
+        if (keyframes > 0) this.warmStart = false;
+        this.warmRun = Math.max(2, p.warmRun);
+        this.sharedPool = sharedPool; this.listener = listener;
+    }
+    
+    AlignResult run() throws Exception {
+        long start = System.nanoTime();
+        publish(0);
+        if (saveMatrix && !mode.equals("Elastic") && !mode.equals("Dense")) matrixLog.add(mode.equals("Homography") ? "Frame,m00,m01,m02,m10,m11,m12,m20,m21,m22" : "Frame,m00,m01,m02,m10,m11,m12");
+
+        ImageStack srcStack = srcImp.getStack();
+        if (virtualOutput) {
+            // Estimate from the source and keep only the transforms; no second copy of the movie
+            resStack = srcStack;
+            virtualStack = new AlignedVirtualStack(srcStack, srcImp.getNChannels(), srcImp.getNSlices(), srcImp.getNFrames(), Math.max(8, 2 * srcImp.getNChannels()));
+            resImp = new ImagePlus("FIA-" + srcImp.getTitle(), virtualStack);
+        } else {
+            // Filled a timepoint at a time by the load stage; the first is loaded here so the ImagePlus has a pixel array
+            resStack = new ImageStack(srcImp.getWidth(), srcImp.getHeight(), srcStack.getSize());
+            resStack.setColorModel(srcStack.getColorModel());
+        }
+
+        int frames = srcImp.getNFrames(); int slices = srcImp.getNSlices(); channels = srcImp.getNChannels();
+        int nTimepoints = frames > 1 ? frames : slices;
+        pagesPerTimepoint = frames > 1 ? channels * slices : channels;
+        int workers = Math.min(threads, nTimepoints);
+        int maxInFlight = 2 * workers;
+        // Rolling reference: frames run in blocks of refRefresh; the reference is updated between blocks,
+        // so every frame sees the same reference for any number of threads
+        int block = (mode.equals("Dense") && refRefresh > 0) ? refRefresh : nTimepoints;
+        int[] loadOrder = loadOrder(nTimepoints, block, workers);
+        if (!virtualOutput) {
+            loaded = new CountDownLatch[nTimepoints + 1];
+            for (int t=1; t<=nTimepoints; t++) loaded[t] = new CountDownLatch(1);
+            lookahead = maxInFlight + workers;
+            if (keyframes > 0) lookahead = Math.max(lookahead, 2 * keyframes + 1); // A whole segment is loaded before it is warped
+            window = new Semaphore(lookahead - 1);
+            loadTimepoint(srcStack, loadOrder[0]);
+            resImp = new ImagePlus("FIA-" + srcImp.getTitle(), resStack);
+        }
+        resImp.setCalibration(srcImp.getCalibration().copy());
+        resImp.setDimensions(srcImp.getNChannels(), srcImp.getNSlices(), srcImp.getNFrames());
+        
+        if (mode.equals("Elastic") || mode.equals("Dense")) initMeshGrid(srcImp.getWidth(), srcImp.getHeight());
+        if (flowSize != null && flowScale > 1 && verbose) IJ.log("FIA: Flow computed at " + (int) flowSize.width + "x" + (int) flowSize.height + " (1/" + flowScale + ")");
+
+        refChannel = 1;
+        if (channels > 1) { 
+            double maxMean = -1; for (int c=1; c<=channels; c++) { int idx = resImp.getStackIndex(c, 1, 1); double mean = srcStack.getProcessor(idx).getStats().mean; if (mean > maxMean) { maxMean = mean; refChannel = c; } } 
+        }
+
+        int idxRef = resImp.getStackIndex(refChannel, 1, refT);
+        ipRef = srcStack.getProcessor(idxRef);
+        isGlobal = !mode.equals("Elastic") && !mode.equals("Dense");
+        if (isGlobal && roi != null) initRegion(ipRef.getWidth(), ipRef.getHeight());
+        if (keyframes > 0 && !Aligner.isOpenCVLoaded()) keyframes = 0;
+        if (keyframes > 0) initProbe();
+
+        if (isLegacy && isGlobal) {
+            int type = mode.equals("Translation") ? LegacyAligner.TRANSLATION : LegacyAligner.AFFINE;
+            legacyRef = LegacyAligner.prepareReference(cropToRegion(ipRef).convertToFloat(), type, pyr);
+        }
+
+        if (isGlobal && (isPhase || coarseInit)) {
+            // Reference spectrum is computed once; each frame then costs one forward + one inverse DFT
+            Mat refRaw = imagePlusToMat(ipRef);
+            if (refRaw != null) { Mat sub = regionOf(refRaw); phase = new PhaseCorrelator(sub, regionMask); releaseRegion(sub, refRaw); refRaw.release(); }
+        }
+
+        Mat warp = null;
+        isEcc = !isLegacy && !isPhase && isGlobal;
+        motion = eccMotionType(mode);
+        if (isEcc) {
+            Mat tplRaw = imagePlusToMat(ipRef); Mat tplSub = regionOf(tplRaw); Mat tpl = new Mat(); tplSub.convertTo(tpl, CvType.CV_32F); Core.normalize(tpl, tpl, 0, 1, Core.NORM_MINMAX); releaseRegion(tplSub, tplRaw); tplRaw.release();
+            // Template pyramid is built once; each frame is solved coarse-to-fine
+            tplPyr = buildPyramid(tpl, eccLevels(tpl.cols(), tpl.rows()), null);
+            maskPyr = new Mat[tplPyr.length];
+            for (int l=0; l<tplPyr.length; l++) { maskPyr[l] = new Mat(); if (regionMask != null) Imgproc.resize(regionMask, maskPyr[l], tplPyr[l].size(), 0, 0, Imgproc.INTER_NEAREST); }
+            terms = new TermCriteria[tplPyr.length];
+            for (int l=0; l<tplPyr.length; l++) terms[l] = new TermCriteria(TermCriteria.COUNT+TermCriteria.EPS, eccIterations(l, tplPyr.length - 1), Math.pow(10, l - eps));
+            if (verbose && tplPyr.length > 1) {
+                StringBuilder sb = new StringBuilder("FIA: ECC pyramid with " + tplPyr.length + " levels, iterations");
+                for (int l=tplPyr.length - 1; l>=0; l--) sb.append(l == tplPyr.length - 1 ? " " : "/").append(terms[l].maxCount);
+                IJ.log(sb + " (coarse to fine)");
+            }
+            warp = identityWarp(motion);
+        }
+
+        if (mode.equals("Elastic")) {
+            Mat mRef = imagePlusToMat(ipRef); elasticRef = new Mat(); toFlowSize(mRef).convertTo(elasticRef, CvType.CV_8UC1); mRef.release();
+        }
+        if (mode.equals("Dense")) {
+            if(verbose) IJ.log("Dense Mode: Building Super Reference from " + refDepth + " frames...");
+            denseSuperRef = createSuperReference(srcImp, refChannel, refT, refDepth, nTimepoints);
+        }
+
+        // Thread budget: frame workers x OpenCV threads <= threads. ECC estimates serially on this thread, so it gets
+        // the whole budget (OpenCV runs the warps' nested parallel loops inline while its pool is busy). In a batch
+        // (shared pool) the batch runner has set OpenCV's threads once for all of its files.
+        boolean cv = Aligner.isOpenCVLoaded() && sharedPool == null;
+        int cvThreads = isEcc ? threads : Math.max(1, threads / workers);
+        if (cv) enterOpenCV(cvThreads);
+        else if (Aligner.isOpenCVLoaded()) cvThreads = Core.getNumThreads();
+        pool = sharedPool != null ? sharedPool : (workers > 1 ? new ForkJoinPool(workers) : null);
+        if (verbose) IJ.log(isEcc ? "FIA: ECC estimates with " + cvThreads + " OpenCV thread(s), warps on " + workers + " frame worker(s)"
+                : "FIA: " + workers + " frame worker(s) x " + cvThreads + " OpenCV thread(s)");
+        if (verbose && isLegacy && isGlobal) IJ.log("FIA: Legacy kernels: " + VectorSupport.describe());
+
+        String[] matrixLines = new String[nTimepoints + 1];
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        int completed = 0; boolean streamed = false;
+        long wall0 = System.nanoTime();
+        try {
+            if (loaded != null) startLoaders(srcStack, loadOrder);
+            if (streamPath != null) {
+                writer = new StackWriter(streamPath, srcImp.getWidth(), srcImp.getHeight(), srcImp.getBitDepth(), channels, slices, frames, ioThreads, 2 * ioThreads * pagesPerTimepoint);
+                // Frames leave memory once written; z-only stacks keep them, as every timepoint addresses the first slice's pages
+                evict = !virtualOutput && (frames > 1 || slices == 1);
+                if (verbose) IJ.log("FIA: Streaming to " + streamPath + (writer.isLarge() ? " (ImageJ large-file TIFF)" : ""));
+            }
+            for (int b0=1; b0<=nTimepoints && !isCancelled(); b0+=block) {
+                int b1 = Math.min(nTimepoints, b0 + block - 1);
+                if (keyframes > 0) { runAdaptive(b0, b1, completed, nTimepoints, matrixLines, warp); completed += b1 - b0 + 1; }
+                else if (warmStart) { runWarmChains(b0, b1, workers, completed, nTimepoints, matrixLines); completed += b1 - b0 + 1; }
+                else for (int t=b0; t<=b1; t++) {
+                    if (isCancelled()) break;
+                    final int frame = t;
+                    Runnable task;
+
+                    if (t == refT && !mode.equals("Dense")) {
+                        if (saveMatrix) matrixLines[t] = isLegacy ? legacyMatrixLine(t, new double[][]{{0},{0}}, LegacyAligner.TRANSLATION) : matrixLine(t, identityWarp(motion));
+                        task = null;
+                    } else if (isEcc) {
+                        // ECC warm-starts from the previous frame's warp, so estimation stays in frame order
+                        awaitLoaded(t); long e0 = System.nanoTime();
+                        estimateEcc(t, warp);
+                        if (saveMatrix) matrixLines[t] = matrixLine(t, warp);
+                        BiConsumer<Mat, Mat> frameWarp = matrixWarp(warp);
+                        computeNanos.addAndGet(System.nanoTime() - e0);
+                        task = () -> stage(frame, () -> applyMatWarp(frame, frameWarp, null));
+                    } else {
+                        task = () -> stage(frame, () -> matrixLines[frame] = alignFrame(frame));
+                    }
+
+                    if (task == null) { stage(t, () -> {}); completed++; publish((int)((double)completed/nTimepoints*100)); continue; }
+                    if (pool == null) { task.run(); completed++; publish((int)((double)completed/nTimepoints*100)); continue; }
+
+                    inFlight.add(pool.submit(task));
+                    while (inFlight.size() >= maxInFlight) { awaitFrame(inFlight.poll()); completed++; publish((int)((double)completed/nTimepoints*100)); }
+                }
+                while (!inFlight.isEmpty()) { awaitFrame(inFlight.poll()); completed++; publish((int)((double)completed/nTimepoints*100)); }
+                if (b1 < nTimepoints && block < nTimepoints) updateSuperReference(b0, b1);
+                if (evict && block < nTimepoints) for (int t=b0; t<=b1; t++) drop(t);
+            }
+            if (warmStart && verbose && !isGlobal) IJ.log("FIA: Dense warm start: " + coldStarts.get() + " cold start(s) in " + nTimepoints + " frames");
+            if (isLegacy && isGlobal && verbose) IJ.log(String.format("FIA: Legacy: %.1f iterations per frame%s", (double) legacyIterations.get() / Math.max(1, legacyFrames.get()), warmStart ? " (warm start)" : ""));
+            if (keyframes > 0 && verbose) IJ.log(String.format("FIA: Adaptive estimation: %d of %d timepoints estimated in full (keyframe every %d, threshold %.2f px), the rest interpolated", fullEstimates.get(), nTimepoints, keyframes, motionThreshold));
+            if (writer != null && !isCancelled()) {
+                writer.close(); streamed = true;
+                // The result is the written file, mapped back in rather than held in memory
+                MappedStack out = new MappedStack(streamPath, new FileInfo[]{writer.fileInfo()});
+                ImagePlus outImp = out.toImagePlus(new File(streamPath).getName());
+                outImp.setCalibration(resImp.getCalibration());
+                resImp = outImp;
+            }
+            if (verbose) logOccupancy(System.nanoTime() - wall0, workers);
+        } finally {
+            stopLoaders();
+            if (writer != null && !streamed) { writer.abort(); if (evict) resImp = null; }
+            if (pool != null && pool != sharedPool) pool.shutdownNow();
+            legacyWorkspace.remove();
+            if (phase != null) phase.release();
+            if (probe != null) probe.release();
+            if (tplPyr != null) for (Mat m : tplPyr) m.release();
+            if (maskPyr != null) for (Mat m : maskPyr) m.release();
+            if (regionMask != null) regionMask.release();
+            if (denseSuperRef != null) denseSuperRef.release();
+            if (superMean != null) superMean.release();
+            if (elasticRef != null) elasticRef.release();
+            if (gridX != null) { gridX.release(); gridY.release(); }
+            if (flowGridX != null && flowGridX != gridX) { flowGridX.release(); flowGridY.release(); }
+            if (verbose) IJ.log(String.format("FIA: Bridge copies: %.2f MB per timepoint", bridgeBytes.get() / 1048576.0 / Math.max(1, nTimepoints)));
+            if (verbose) IJ.log(String.format("FIA: Native buffers: %d pooled Mat(s), peak %.1f MB; process peak RSS %s", mats.size(), mats.peakBytes() / 1048576.0, MatPool.processPeakRss() < 0 ? "n/a" : String.format("%.0f MB", MatPool.processPeakRss() / 1048576.0)));
+            mats.releaseAll();
+            clahe.remove(); dis.remove();
+            if (cv) exitOpenCV();
+        }
+
+        for (String line : matrixLines) if (line != null) matrixLog.add(line);
+        long bytes = (long) srcImp.getStackSize() * srcImp.getWidth() * srcImp.getHeight() * Math.max(1, srcImp.getBitDepth() / 8);
+        return new AlignResult(isCancelled() ? null : resImp, matrixLog, nTimepoints, bytes, System.nanoTime() - start);
+    }
+
+    private void publish(int percent) { listener.progress(percent); }
+    private boolean isCancelled() { return listener.cancelled(); }
+
+    // OpenCV's thread count is process-wide: the first of concurrent runs sets it (and the last restores it);
+    // when runs overlap, each gets a single OpenCV thread and parallelism comes from the frame workers.
+    // A batch enters once for all of its files (BatchRunner), so its files never reset it for each other.
+    private static int activeRuns, savedCvThreads;
+    static synchronized void enterOpenCV(int n) {
+        if (activeRuns++ == 0) savedCvThreads = Core.getNumThreads();
+        Core.setNumThreads(activeRuns == 1 ? n : 1);
+    }
+    static synchronized void exitOpenCV() { if (--activeRuns == 0) Core.setNumThreads(savedCvThreads); }
+
+    /**
+     * Warm start (Dense, Legacy): first..last is cut into runs of warmRun frames, each followed in order with every flow
+     * or transform seeded by the previous frame's, so only the first frame of a run starts cold. The runs do not depend
+     * on the thread count; they are taken workers at a time (a round), matching loadOrder().
+     */
+    private void runWarmChains(int first, int last, int workers, int done, int nTimepoints, String[] matrixLines) throws Exception {
+        AtomicInteger completed = new AtomicInteger(done);
+        int nRuns = warmRuns(first, last);
+        for (int r0=0; r0<nRuns && !isCancelled(); r0+=workers) {
+            List<Future<?>> round = new ArrayList<>();
+            for (int k=r0; k<Math.min(nRuns, r0 + workers); k++) {
+                Runnable run = warmRun(first + k * warmRun, Math.min(last, first + (k + 1) * warmRun - 1), completed, nTimepoints, matrixLines);
+                if (pool == null) run.run(); else round.add(pool.submit(run));
+            }
+            for (Future<?> f : round) awaitFrame(f);
+        }
+    }
+
+    /** Number of warm-start runs first..last is cut into. */
+    private int warmRuns(int first, int last) { return (last - first + warmRun) / warmRun; }
+
+    /** One warm-start run: frames from..to in order, each seeded by the one before. */
+    private Runnable warmRun(int from, int to, AtomicInteger completed, int nTimepoints, String[] matrixLines) {
+        return () -> {
+            WarmChain chain = new WarmChain();
+            try {
+                for (int t=from; t<=to && !isCancelled(); t++) {
+                    final int frame = t;
+                    if (isGlobal && t == refT) {
+                        // Reference: left as is, and the identity seeds the next frame
+                        if (saveMatrix) matrixLines[t] = legacyMatrixLine(t, new double[][]{{0},{0}}, LegacyAligner.TRANSLATION);
+                        stage(frame, () -> {});
+                        chain.record(new double[2][legacyRef.getTransformType() == LegacyAligner.TRANSLATION ? 1 : 3]);
+                    } else stage(frame, () -> matrixLines[frame] = alignFrame(frame, chain));
+                    publish((int)((double)completed.incrementAndGet()/nTimepoints*100));
+                }
+            } finally { chain.release(); }
+        };
+    }
+
+    /**
+     * Adaptive estimation of first..last in segments of keyframes timepoints. Every timepoint gets a cheap probe shift;
+     * the segment ends are estimated in full, and so is the timepoint whose probe strays furthest from the straight
+     * path between its fully estimated neighbours, until none strays by more than motionThreshold. The rest take
+     * transforms (global) or flow fields (Elastic/Dense) interpolated linearly between those neighbours. A segment is
+     * probed and estimated, then warped in parallel; ECC estimates stay in frame order, each seeded with the last.
+     */
+    private void runAdaptive(int first, int last, int done, int nTimepoints, String[] matrixLines, Mat eccWarp) throws Exception {
+        AtomicInteger completed = new AtomicInteger(done);
+        Estimate[] seg = {new Estimate()};
+        try {
+            seg[0].probe = probeShift(first);
+            estimateFull(first, seg[0], eccWarp);
+            stage(first, () -> matrixLines[first] = warpEstimate(first, seg[0]));
+            publish((int)((double)completed.incrementAndGet()/nTimepoints*100));
+            for (int k0=first; k0<last && !isCancelled(); ) {
+                int k1 = Math.min(last, k0 + keyframes), n = k1 - k0, from = k0;
+                Estimate[] s = new Estimate[n + 1]; s[0] = seg[0];
+                for (int i=1; i<=n; i++) s[i] = new Estimate();
+                seg[0] = s[n]; // Carried into the next segment
+                try {
+                    parallel(1, n, i -> s[i].probe = probeShift(from + i));
+                    markFull(s, from);
+                    if (isEcc) { for (int i=1; i<=n; i++) if (s[i].full) estimateFull(from + i, s[i], eccWarp); }
+                    else parallel(1, n, i -> { if (s[i].full) estimateFull(from + i, s[i], null); });
+                    for (int i=1, a=0; i<n; i++) {
+                        if (s[i].full) { a = i; continue; }
+                        int b = i + 1; while (!s[b].full) b++;
+                        s[i].a = s[a]; s[i].b = s[b]; s[i].s = (double) (i - a) / (b - a);
+                    }
+                    parallel(1, n, i -> {
+                        stage(from + i, () -> matrixLines[from + i] = warpEstimate(from + i, s[i]));
+                        publish((int)((double)completed.incrementAndGet()/nTimepoints*100));
+                    });
+                } finally {
+                    for (int i=0; i<n; i++) s[i].release();
+                }
+                k0 = k1;
+            }
+        } finally {
+            if (seg[0] != null) seg[0].release();
+        }
+    }
+
+    /** Marks the timepoints of a segment to estimate in full: both ends, the reference, and probe outliers, worst first. */
+    private void markFull(Estimate[] s, int k0) {
+        int n = s.length - 1;
+        s[0].full = s[n].full = true;
+        if (!mode.equals("Dense") && refT > k0 && refT < k0 + n) s[refT - k0].full = true;
+        while (true) {
+            int worst = -1; double worstDev = motionThreshold;
+            for (int i=1, a=0; i<n; i++) {
+                if (s[i].full) { a = i; continue; }
+                int b = i + 1; while (!s[b].full) b++;
+                double f = (double) (i - a) / (b - a);
+                double dx = s[i].probe[0] - (s[a].probe[0] + f * (s[b].probe[0] - s[a].probe[0]));
+                double dy = s[i].probe[1] - (s[a].probe[1] + f * (s[b].probe[1] - s[a].probe[1]));
+                double dev = Math.sqrt(dx * dx + dy * dy);
+                if (dev > worstDev) { worstDev = dev; worst = i; }
+            }
+            if (worst < 0) return;
+            s[worst].full = true;
+        }
+    }
+
+    /** Full estimate of timepoint t into e (no warp). ECC refines eccWarp in place and copies it. */
+    private void estimateFull(int t, Estimate e, Mat eccWarp) {
+        awaitLoaded(t); long t0 = System.nanoTime();
+        e.full = true;
+        int idx = resImp.getStackIndex(refChannel, 1, t);
+        if (t == refT && !mode.equals("Dense")) {
+            // Reference: left as is, as in the per-frame path
+            if (!isGlobal) e.flow = Mat.zeros(flowSize, CvType.CV_32FC2);
+        } else if (isEcc) {
+            estimateEcc(t, eccWarp);
+            float[] m = new float[eccWarp.rows() * 3]; eccWarp.get(0, 0, m);
+            e.params = new double[m.length]; for (int i=0; i<m.length; i++) e.params[i] = m[i];
+        } else if (isGlobal && isPhase) {
+            Mat currRaw = frameMat(idx, "est.src"); Mat sub = regionOf(currRaw);
+            double[] d = phaseShift(sub, t);
+            releaseRegion(sub, currRaw); releaseView(currRaw);
+            e.params = new double[]{1, 0, d[0], 0, 1, d[1]};
+        } else if (isGlobal) {
+            double[][] wp = estimateLegacy(resStack.getProcessor(idx), t, null);
+            if (wp == null) wp = new double[2][legacyRef.getTransformType() == LegacyAligner.TRANSLATION ? 1 : 3];
+            e.params = new double[2 * wp[0].length];
+            for (int r=0; r<2; r++) System.arraycopy(wp[r], 0, e.params, r * wp[0].length, wp[0].length);
+        } else {
+            ImageProcessor ipCurr = resStack.getProcessor(idx);
+            int w = ipCurr.getWidth(); int h = ipCurr.getHeight();
+            Mat mapX = mats.get("map.x", h, w, CvType.CV_32F); Mat mapY = mats.get("map.y", h, w, CvType.CV_32F);
+            if (mode.equals("Dense")) calculateDenseFlow(denseSuperRef, ipCurr, t, mapX, mapY, null); else calculateElasticFlow(elasticRef, ipCurr, t, mapX, mapY);
+            e.flow = mats.get("flow").clone();
+        }
+        fullEstimates.incrementAndGet();
+        computeNanos.addAndGet(System.nanoTime() - t0);
+    }
+
+    /** Warps timepoint t with its estimate, interpolating it first if needed; returns its matrix CSV line, if any. */
+    private String warpEstimate(int t, Estimate e) {
+        if (t == refT && !mode.equals("Dense")) {
+            if (!saveMatrix) return null;
+            return isLegacy ? legacyMatrixLine(t, new double[][]{{0},{0}}, LegacyAligner.TRANSLATION) : matrixLine(t, identityWarp(motion));
+        }
+        if (!isGlobal) {
+            Mat flow = e.flow;
+            if (flow == null) { flow = mats.get("flow.lerp"); Core.addWeighted(e.a.flow, 1 - e.s, e.b.flow, e.s, 0, flow); }
+            int w = resImp.getWidth(); int h = resImp.getHeight();
+            Mat mapX = mats.get("map.x", h, w, CvType.CV_32F); Mat mapY = mats.get("map.y", h, w, CvType.CV_32F);
+            flowToMaps(flow, mapX, mapY);
+            applyRemap(t, mapX, mapY, null);
+            return null;
+        }
+        double[] p = e.params;
+        if (p == null) {
+            // The reference is the identity, whatever the engine stores
+            double[] pa = e.a.params != null ? e.a.params : identityParams(), pb = e.b.params != null ? e.b.params : identityParams();
+            p = new double[pa.length];
+            for (int i=0; i<p.length; i++) p[i] = pa[i] + e.s * (pb[i] - pa[i]);
+        }
+        if (isLegacy) {
+            int cols = p.length / 2;
+            double[][] wp = {Arrays.copyOfRange(p, 0, cols), Arrays.copyOfRange(p, cols, 2 * cols)};
+            return applyLegacyWarp(t, wp);
+        }
+        Mat m = new Mat(p.length / 3, 3, CvType.CV_32F);
+        float[] data = new float[p.length]; for (int i=0; i<p.length; i++) data[i] = (float) p[i];
+        m.put(0, 0, data);
+        applyMatWarp(t, matrixWarp(m), null);
+        String line = saveMatrix ? matrixLine(t, m) : null;
+        m.release();
+        return line;
+    }
+
+    /** Parameters of the identity in the layout estimateFull() stores for this run's engine. */
+    private double[] identityParams() {
+        if (isLegacy) return new double[legacyRef.getTransformType() == LegacyAligner.TRANSLATION ? 2 : 6];
+        if (isPhase || motion != Video.MOTION_HOMOGRAPHY) return new double[]{1, 0, 0, 0, 1, 0};
+        return new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    }
+
+    /** Adaptive estimation: shift of timepoint t's reference channel against the reference frame, on binned frames. */
+    private double[] probeShift(int t) {
+        awaitLoaded(t);
+        Mat raw = frameMat(resImp.getStackIndex(refChannel, 1, t), "probe.src");
+        Mat small = mats.get("probe.bin");
+        Mat sub = regionOf(raw);
+        Imgproc.resize(sub, small, probeSize, 0, 0, Imgproc.INTER_AREA);
+        releaseRegion(sub, raw); releaseView(raw);
+        double[] d = probe.estimate(small);
+        return new double[]{d[0] * probeScaleX, d[1] * probeScaleY};
+    }
+
+    /**
+     * Adaptive estimation: phase correlator on the reference frame (estimation region) binned at least 2x, to about 128 px.
+     * Binning averages out the pixel noise that phase-only correlation would otherwise amplify.
+     */
+    private void initProbe() {
+        Mat refRaw = imagePlusToMat(ipRef); Mat ref = regionOf(refRaw);
+        double bin = Math.max(2, Math.max(ref.cols(), ref.rows()) / 128.0);
+        probeSize = new Size(Math.max(8, Math.round(ref.cols() / bin)), Math.max(8, Math.round(ref.rows() / bin)));
+        probeScaleX = ref.cols() / probeSize.width; probeScaleY = ref.rows() / probeSize.height;
+        Mat small = new Mat(), smallMask = null;
+        Imgproc.resize(ref, small, probeSize, 0, 0, Imgproc.INTER_AREA);
+        if (regionMask != null) { smallMask = new Mat(); Imgproc.resize(regionMask, smallMask, probeSize, 0, 0, Imgproc.INTER_AREA); }
+        probe = new PhaseCorrelator(small, smallMask);
+        small.release(); releaseRegion(ref, refRaw); refRaw.release(); if (smallMask != null) smallMask.release();
+        if (verbose) IJ.log(String.format("FIA: Adaptive estimation, keyframe every %d timepoints; probe at %dx%d", keyframes, (int) probeSize.width, (int) probeSize.height));
+    }
+
+    /** Runs body for first..last on the frame pool (inline without one) and waits for all of them. */
+    private void parallel(int first, int last, IntConsumer body) throws Exception {
+        if (pool == null) { for (int i=first; i<=last; i++) body.accept(i); return; }
+        awaitFrame(pool.submit(() -> forEachIndex(first, last, body)));
+    }
+
+    /**
+     * Order in which the compute stage consumes timepoints, so loading runs ahead of it: frame order, except that
+     * the warm-start runs of a round advance side by side, so their frames are interleaved.
+     */
+    private int[] loadOrder(int nTimepoints, int block, int workers) {
+        int[] order = new int[nTimepoints]; int k = 0;
+        for (int b0=1; b0<=nTimepoints; b0+=block) {
+            int b1 = Math.min(nTimepoints, b0 + block - 1);
+            if (!warmStart) { for (int t=b0; t<=b1; t++) order[k++] = t; continue; }
+            int nRuns = warmRuns(b0, b1);
+            for (int r0=0; r0<nRuns; r0+=workers) {
+                int r1 = Math.min(nRuns, r0 + workers);
+                for (int step=0; step<warmRun; step++) {
+                    for (int r=r0; r<r1; r++) { int t = b0 + r * warmRun + step; if (t <= b1) order[k++] = t; }
+                }
+            }
+        }
+        return order;
+    }
+
+    /** Load stage: copies every page of timepoint t from the source into the working stack. */
+    private void loadTimepoint(ImageStack src, int t) {
+        long t0 = System.nanoTime();
+        for (int n=(t - 1) * pagesPerTimepoint + 1; n<=t * pagesPerTimepoint; n++) {
+            ImageProcessor ip = src.getProcessor(n);
+            // Virtual stacks hand out fresh processors; in-memory pixels are shared with the source and must be copied
+            resStack.setPixels(src.isVirtual() ? ip.getPixels() : ip.duplicate().getPixels(), n);
+            resStack.setSliceLabel(src.getSliceLabel(n), n);
+        }
+        loadNanos.addAndGet(System.nanoTime() - t0);
+        loadedCount.incrementAndGet();
+        loaded[t].countDown();
+    }
+
+    /**
+     * Starts ioThreads loaders on order[1..] (order[0] is loaded during setup). A permit is taken before a timepoint is
+     * claimed, so the timepoints loaded ahead are always a prefix of the order and the compute stage can always drain them.
+     */
+    private void startLoaders(ImageStack src, int[] order) {
+        AtomicInteger next = new AtomicInteger(1);
+        loaders = Executors.newFixedThreadPool(ioThreads, r -> { Thread th = new Thread(r, "FIA-Loader"); th.setDaemon(true); return th; });
+        for (int i=0; i<ioThreads; i++) loaders.execute(() -> {
+            try {
+                while (true) {
+                    window.acquire();
+                    int k = next.getAndIncrement();
+                    if (k >= order.length) { window.release(); return; }
+                    loadTimepoint(src, order[k]);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            } catch (Throwable e) {
+                loadFailure = e;
+                for (CountDownLatch l : loaded) if (l != null) l.countDown();
+            }
+        });
+    }
+
+    /** Stops the loaders and wakes anything still waiting for a timepoint. */
+    private void stopLoaders() {
+        if (loaders == null) return;
+        loaders.shutdownNow();
+        if (loadFailure == null) loadFailure = new CancellationException("Loading stopped");
+        for (CountDownLatch l : loaded) if (l != null) l.countDown();
+    }
+
+    /**
+     * Blocks until timepoint t is in the working stack (no-op for virtual output, which reads the source directly).
+     * The wait is a managed block, so a frame pool whose workers all wait here starts spares for its queued tasks: in
+     * a batch, the warm-start runs whose frames fill this run's load window get threads even when other files hold the pool.
+     */
+    private void awaitLoaded(int t) {
+        if (loaded == null) return;
+        CountDownLatch latch = loaded[t];
+        if (latch.getCount() > 0) {
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    public boolean block() throws InterruptedException { latch.await(); return true; }
+                    public boolean isReleasable() { return latch.getCount() == 0; }
+                });
+            } catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new CancellationException(); }
+        }
+        if (loadFailure != null && loadedCount.get() < loaded.length - 1) throw new RuntimeException("FIA: Loading timepoint " + t + " failed: " + loadFailure, loadFailure);
+    }
+
+    /** Compute stage of timepoint t: waits for it to be loaded, runs body, then emits it. */
+    private void stage(int t, Runnable body) {
+        awaitLoaded(t);
+        long t0 = System.nanoTime();
+        body.run();
+        computeNanos.addAndGet(System.nanoTime() - t0);
+        emit(t);
+    }
+
+    /**
+     * Emit stage: queues the aligned pages of timepoint t for the writer (blocking while its queue is full), frees a
+     * load-window slot, and drops the pages once written unless the rolling reference still needs them.
+     */
+    private void emit(int t) {
+        if (writer != null) {
+            try {
+                for (int n=(t - 1) * pagesPerTimepoint + 1; n<=t * pagesPerTimepoint; n++) writer.put(n, virtualStack != null ? virtualStack.getProcessor(n) : resStack.getProcessor(n));
+            } catch (IOException e) { throw new RuntimeException("FIA: Writing " + streamPath + " failed: " + e.getMessage(), e); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); throw new CancellationException(); }
+            writeQueueSum.addAndGet(writer.queued());
+        }
+        aheadSum.addAndGet(loadedCount.get() - emittedCount.incrementAndGet());
+        if (verbose) mats.sample();
+        if (window != null) window.release();
+        if (evict && !(mode.equals("Dense") && refRefresh > 0)) drop(t);
+    }
+
+    private void drop(int t) { for (int n=(t - 1) * pagesPerTimepoint + 1; n<=t * pagesPerTimepoint; n++) resStack.setPixels(null, n); }
+
+    /** Verbose: how busy each stage was over the run, and how full the queues between them were on average. */
+    private void logOccupancy(long wallNanos, int workers) {
+        int emitted = Math.max(1, emittedCount.get());
+        double wall = Math.max(1, wallNanos);
+        StringBuilder sb = new StringBuilder(String.format("FIA: Pipeline %.1f s: ", wall / 1e9));
+        if (loaders != null) sb.append(String.format("load %d thread(s) %.0f%% busy, %.1f of %d timepoints ahead; ", ioThreads, 100 * loadNanos.get() / (wall * ioThreads), (double) aheadSum.get() / emitted, lookahead));
+        sb.append(String.format("compute %d worker(s) %.0f%% busy", workers, 100 * computeNanos.get() / (wall * workers)));
+        if (writer != null) sb.append(String.format("; write %d thread(s) %.0f%% busy, queue %.1f of %d pages, %.1f MB", writer.threads(), 100 * writer.busyNanos() / (wall * writer.threads()), (double) writeQueueSum.get() / emitted, writer.capacity(), writer.bytesWritten() / 1048576.0));
+        IJ.log(sb.toString());
+    }
+
+    private String alignFrame(int t) { return alignFrame(t, null); }
+
+    /** Estimate and warp one timepoint (Legacy, Phase Corr, Elastic, Dense). Returns its matrix CSV line, if any. */
+    private String alignFrame(int t, WarmChain chain) {
+        int idx = resImp.getStackIndex(refChannel, 1, t);
+        boolean local = mode.equals("Elastic") || mode.equals("Dense");
+
+        if (isPhase && !local) {
+            Mat currRaw = frameMat(idx, "est.src"); Mat sub = regionOf(currRaw);
+            double[] d = phaseShift(sub, t);
+            releaseRegion(sub, currRaw);
+            Mat frameWarp = Mat.eye(2, 3, CvType.CV_32F); frameWarp.put(0, 2, d[0]); frameWarp.put(1, 2, d[1]);
+            applyMatWarp(t, matrixWarp(frameWarp), currRaw);
+            String line = saveMatrix ? matrixLine(t, frameWarp) : null;
+            frameWarp.release(); releaseView(currRaw);
+            return line;
+        }
+
+        ImageProcessor ipCurr = resStack.getProcessor(idx);
+        if (tileSize > 0) { alignFrameTiled(t, ipCurr); return null; }
+        if (local) {
+            int w = ipCurr.getWidth(); int h = ipCurr.getHeight();
+            Mat mapX = mats.get("map.x", h, w, CvType.CV_32F); Mat mapY = mats.get("map.y", h, w, CvType.CV_32F);
+            Mat currRaw = mode.equals("Dense") ? calculateDenseFlow(denseSuperRef, ipCurr, t, mapX, mapY, chain) : calculateElasticFlow(elasticRef, ipCurr, t, mapX, mapY);
+            applyRemap(t, mapX, mapY, currRaw);
+            return null;
+        }
+
+        double[][] legacyWp = estimateLegacy(ipCurr, t, chain != null ? chain.predict() : null);
+        if (chain != null) chain.record(legacyWp);
+        if (legacyWp == null) return null;
+        return applyLegacyWarp(t, legacyWp);
+    }
+
+    /**
+     * Legacy estimate of timepoint t in full-frame coordinates, or null if it failed. Starts from seed (full-frame,
+     * null = identity); with Coarse Init the FFT shift then replaces its translation.
+     */
+    private double[][] estimateLegacy(ImageProcessor ipCurr, int t, double[][] seed) {
+        int type = legacyRef.getTransformType();
+        double[][] legacyWp = (type == LegacyAligner.TRANSLATION) ? new double[2][1] : new double[2][3];
+        if (seed != null) {
+            for (int r=0; r<2; r++) System.arraycopy(seed[r], 0, legacyWp[r], 0, legacyWp[r].length);
+            if (region != null && type == LegacyAligner.AFFINE) {
+                // Into region coordinates: t_region = t_full + (A - I) * o
+                legacyWp[0][2] += legacyWp[0][0] * region.x + legacyWp[0][1] * region.y;
+                legacyWp[1][2] += legacyWp[1][0] * region.x + legacyWp[1][1] * region.y;
+            }
+        }
+        if (phase != null) {
+            // Translations are the same in region and full-frame coordinates
+            Mat currRaw = imagePlusToMat(ipCurr, mats.get("est.src"));
+            Mat sub = regionOf(currRaw);
+            double[] d = phaseShift(sub, t);
+            if (type == LegacyAligner.TRANSLATION) { legacyWp[0][0] = d[0]; legacyWp[1][0] = d[1]; }
+            else {
+                // Keep the seeded linear part, re-center the translation on the FFT shift: t = d - (A - I) * c
+                double cx = 0.5 * (sub.cols() - 1), cy = 0.5 * (sub.rows() - 1);
+                legacyWp[0][2] = d[0] - (legacyWp[0][0] * cx + legacyWp[0][1] * cy);
+                legacyWp[1][2] = d[1] - (legacyWp[1][0] * cx + legacyWp[1][1] * cy);
+            }
+            releaseRegion(sub, currRaw);
+        }
+        try {
+            legacyIterations.addAndGet(LegacyAligner.estimate(cropToRegion(ipCurr), legacyRef, maxIter, Math.pow(10, -eps), legacyWorkspace.get(), legacyWp, seed != null));
+            legacyFrames.incrementAndGet();
+        } catch (Exception ex) { ex.printStackTrace(); return null; }
+        if (region != null && type == LegacyAligner.AFFINE) {
+            // Legacy affine warps about the origin: t_full = t_region - (A - I) * o
+            legacyWp[0][2] -= legacyWp[0][0] * region.x + legacyWp[0][1] * region.y;
+            legacyWp[1][2] -= legacyWp[1][0] * region.x + legacyWp[1][1] * region.y;
+        }
+        return legacyWp;
+    }
+
+    /** Warps timepoint t with a Legacy wp; returns its matrix CSV line, if any. */
+    private String applyLegacyWarp(int t, double[][] legacyWp) {
+        int type = legacyRef.getTransformType();
+        applyWarp(t, (src, dst) -> {
+            if (src == dst) LegacyAligner.warp(dst, legacyWp, type, legacyWorkspace.get());
+            else LegacyAligner.warp(src, legacyWp, type, dst.getPixels());
+        });
+        return saveMatrix ? legacyMatrixLine(t, legacyWp, type) : null;
+    }
+
+    /** ECC of timepoint t against the template pyramid, refining warp in place (full-frame coordinates, seeded by the caller). */
+    private void estimateEcc(int t, Mat warp) {
+        int idx = resImp.getStackIndex(refChannel, 1, t);
+        Mat currRaw = frameMat(idx, "ecc.src"); Mat sub = regionOf(currRaw); Mat curr = mats.get("ecc.curr"); sub.convertTo(curr, CvType.CV_32F); Core.normalize(curr, curr, 0, 1, Core.NORM_MINMAX);
+        if (phase != null) {
+            // Keep the linear part, re-center the translation on the FFT shift: t = c + d - A*c
+            double[] d = phaseShift(sub, t);
+            double cx = 0.5 * (currRaw.cols() - 1), cy = 0.5 * (currRaw.rows() - 1);
+            float[] a = new float[6]; warp.get(0, 0, a);
+            warp.put(0, 2, cx + d[0] - (a[0] * cx + a[1] * cy));
+            warp.put(1, 2, cy + d[1] - (a[3] * cx + a[4] * cy));
+        }
+        Mat[] currPyr = buildPyramid(curr, tplPyr.length - 1, "ecc.pyr");
+        // The warp is kept in full-frame coordinates; ECC solves it in region coordinates
+        if (region != null) shiftWarpOrigin(warp, region.x, region.y);
+        findTransformEccPyramid(tplPyr, currPyr, maskPyr, warp, motion, terms);
+        if (region != null) shiftWarpOrigin(warp, -region.x, -region.y);
+        releaseRegion(sub, currRaw); releaseView(currRaw);
+    }
+
+    /**
+     * Frame idx of the working stack as a Mat for estimation: a zero-copy view when the input is memory-mapped
+     * (Virtual Output), otherwise copied into the pooled Mat for key. Pass the result to releaseView() when done.
+     */
+    private Mat frameMat(int idx, String key) {
+        if (resStack instanceof MappedStack) { Mat view = ((MappedStack) resStack).mat(idx); if (view != null) return view; }
+        return imagePlusToMat(resStack.getProcessor(idx), mats.get(key));
+    }
+
+    /** Drops a frameMat() view; the mapping itself is untouched. */
+    private void releaseView(Mat m) { if (resStack instanceof MappedStack) m.release(); }
+
+    /**
+     * Clips the ROI to the frame; non-rectangular ROIs also keep their mask, used as the ECC input mask and as the
+     * phase-correlation window. The Legacy engine estimates on the bounding box only.
+     */
+    private void initRegion(int w, int h) {
+        Rectangle bounds = roi.getBounds();
+        Rectangle r = bounds.intersection(new Rectangle(0, 0, w, h));
+        if (r.isEmpty()) { IJ.log("FIA: ROI is outside the image, estimating on the full frame."); return; }
+        region = r;
+        ImageProcessor mask = roi.getMask();
+        if (mask != null) {
+            mask.setRoi(r.x - bounds.x, r.y - bounds.y, r.width, r.height); mask = mask.crop();
+            regionMask = new Mat(r.height, r.width, CvType.CV_8UC1); regionMask.put(0, 0, (byte[]) mask.getPixels());
+        }
+        if (verbose) IJ.log("FIA: Estimation region " + r.width + "x" + r.height + " at (" + r.x + "," + r.y + ")" + (regionMask != null ? ", masked" : ""));
+        if (regionMask != null && isLegacy) IJ.log("FIA: The Legacy engine estimates on the ROI's bounding box, not its shape" + (coarseInit ? " (Coarse Init follows the shape)." : "."));
+    }
+
+    /** View of m restricted to the estimation region (shares data), or m itself. Pass it to releaseRegion() when done. */
+    private Mat regionOf(Mat m) { return region == null ? m : m.submat(region.y, region.y + region.height, region.x, region.x + region.width); }
+
+    /** Drops a regionOf() view's own header (and its reference to m's pixels); m itself is untouched. */
+    private void releaseRegion(Mat view, Mat m) { if (view != m) view.release(); }
+
+    private ImageProcessor cropToRegion(ImageProcessor ip) {
+        if (region == null) return ip;
+        ip.setRoi(region); ImageProcessor sub = ip.crop(); ip.resetRoi(); return sub;
+    }
+
+    /** Re-expresses a warp for an image whose origin moves to o: W' = T(-o) * W * T(o). */
+    private void shiftWarpOrigin(Mat warp, double ox, double oy) {
+        float[] m = new float[warp.rows() * 3]; warp.get(0, 0, m);
+        boolean persp = m.length == 9;
+        double h20 = persp ? m[6] : 0, h21 = persp ? m[7] : 0, h22 = persp ? m[8] : 1;
+        double c0 = m[0] * ox + m[1] * oy + m[2], c1 = m[3] * ox + m[4] * oy + m[5], c2 = h20 * ox + h21 * oy + h22;
+        float[] out = {(float)(m[0] - ox * h20), (float)(m[1] - ox * h21), (float)(c0 - ox * c2),
+                       (float)(m[3] - oy * h20), (float)(m[4] - oy * h21), (float)(c1 - oy * c2),
+                       (float) h20, (float) h21, (float) c2};
+        warp.put(0, 0, persp ? out : Arrays.copyOf(out, 6));
+    }
+
+    private double[] phaseShift(Mat currRaw, int t) {
+        double[] d = phase.estimate(currRaw);
+        if (verbose && t % 10 == 0) IJ.log(String.format("Phase Corr F%d: dx=%.2f, dy=%.2f, response=%.3f", t, d[0], d[1], d[2]));
+        return d;
+    }
+
+    /**
+     * Coarse-to-fine ECC: solve at the coarsest level, then scale the warp up and refine.
+     * terms[l] is the budget of level l (0 = full resolution); coarse levels use a looser epsilon and more iterations.
+     */
+    private void findTransformEccPyramid(Mat[] tplPyr, Mat[] currPyr, Mat[] maskPyr, Mat warp, int motion, TermCriteria[] terms) {
+        int top = tplPyr.length - 1;
+        scaleWarp(warp, 1.0 / (1 << top));
+        for (int l=top; l>=0; l--) {
+            try { Video.findTransformECC(tplPyr[l], currPyr[l], warp, motion, terms[l], maskPyr[l], 5); } catch(Exception e){}
+            if (l > 0) scaleWarp(warp, 2.0);
+        }
+    }
+
+    /**
+     * Number of pyramid levels for ECC: none unless Coarse-to-fine ECC is on, then the Pyramid Levels setting, capped so
+     * the coarsest level stays >= 64 px.
+     */
+    private int eccLevels(int w, int h) { int levels = 0; while (eccPyramid && levels < pyr && (Math.min(w, h) >> (levels + 1)) >= 64) levels++; return levels; }
+
+    /**
+     * Iteration budget of ECC level l of 0..top: Max Iterations at the coarsest level, halved per finer level (at least
+     * 10), since each level starts from the solution of the one below and a full-resolution iteration costs 4x more.
+     */
+    private int eccIterations(int l, int top) { return Math.max(Math.min(maxIter, 10), maxIter >> (top - l)); }
+
+    /** pyr[0] is src itself; pyr[l] is src downsampled l times with pyrDown (into pooled Mats when poolKey is set). */
+    private Mat[] buildPyramid(Mat src, int levels, String poolKey) {
+        Mat[] out = new Mat[levels + 1]; out[0] = src;
+        for (int l=1; l<=levels; l++) { out[l] = poolKey == null ? new Mat() : mats.get(poolKey + l); Imgproc.pyrDown(out[l-1], out[l]); }
+        return out;
+    }
+
+    /** Re-expresses a frame-to-reference warp in coordinates scaled by s (S*W*S^-1, S = diag(s, s, 1)). */
+    private void scaleWarp(Mat warp, double s) {
+        warp.put(0, 2, warp.get(0, 2)[0] * s); warp.put(1, 2, warp.get(1, 2)[0] * s);
+        if (warp.rows() == 3) { warp.put(2, 0, warp.get(2, 0)[0] / s); warp.put(2, 1, warp.get(2, 1)[0] / s); }
+    }
+
+    /** Warps every channel of timepoint t in place, or records the warp for the virtual output. */
+    private void applyWarp(int t, AlignedVirtualStack.FrameWarp warp) {
+        if (virtualStack != null) { virtualStack.setFrameWarp(t, warp); return; }
+        forEachChannel(c -> { ImageProcessor ip = resStack.getProcessor(resImp.getStackIndex(c, 1, t)); warp.apply(ip, ip); });
+    }
+
+    /**
+     * applyWarp() for OpenCV warps (src -> pooled dst). refSrc is the reference channel of timepoint t as already copied
+     * in for estimation (or null); it is warped directly instead of being copied in a second time.
+     */
+    private void applyMatWarp(int t, BiConsumer<Mat, Mat> warp, Mat refSrc) {
+        if (virtualStack != null || refSrc == null) { applyWarp(t, (src, dst) -> { Mat d = mats.get("warp.dst"); warp.accept(imagePlusToMat(src, mats.get("warp.src")), d); updateImageProcessor(dst, d); }); return; }
+        forEachChannel(c -> {
+            ImageProcessor ip = resStack.getProcessor(resImp.getStackIndex(c, 1, t));
+            Mat src = (c == refChannel) ? refSrc : imagePlusToMat(ip, mats.get("warp.src")); Mat dst = mats.get("warp.dst");
+            warp.accept(src, dst);
+            updateImageProcessor(ip, dst);
+        });
+    }
+
+    /**
+     * Remaps every channel of timepoint t in place (Elastic, Dense). The maps are converted to fixed point once and
+     * the channels are warped together, merged in groups of up to 4 (remap's channel limit), so the coordinates are
+     * decoded once per group instead of once per channel. refSrc is the reference channel as already copied in (or null).
+     */
+    private void applyRemap(int t, Mat mapX, Mat mapY, Mat refSrc) {
+        Mat xy = mats.get("remap.xy"); Mat frac = mats.get("remap.frac");
+        Imgproc.convertMaps(mapX, mapY, xy, frac, CvType.CV_16SC2, false);
+        Mat dst = mats.get("remap.dst");
+        for (int c0=1; c0<=channels; c0+=4) {
+            int n = Math.min(4, channels - c0 + 1);
+            List<Mat> group = new ArrayList<>(n);
+            for (int i=0; i<n; i++) {
+                int c = c0 + i;
+                group.add(c == refChannel && refSrc != null ? refSrc : imagePlusToMat(resStack.getProcessor(resImp.getStackIndex(c, 1, t)), mats.get("remap.in" + i)));
+            }
+            if (n == 1) { Imgproc.remap(group.get(0), dst, xy, frac, interp); updateImageProcessor(resStack.getProcessor(resImp.getStackIndex(c0, 1, t)), dst); continue; }
+            Mat merged = mats.get("remap.merged"); Mat warped = mats.get("remap.warped");
+            Core.merge(group, merged);
+            Imgproc.remap(merged, warped, xy, frac, interp);
+            for (int i=0; i<n; i++) { Core.extractChannel(warped, dst, i); updateImageProcessor(resStack.getProcessor(resImp.getStackIndex(c0 + i, 1, t)), dst); }
+        }
+    }
+
+    /** 2x3 affine or 3x3 perspective warp (frame-to-reference, inverse map); keeps a copy of the matrix. */
+    private BiConsumer<Mat, Mat> matrixWarp(Mat frameWarp) {
+        int rows = frameWarp.rows();
+        float[] data = new float[rows * 3]; frameWarp.get(0, 0, data);
+        return (src, dst) -> {
+            Mat m = mats.get("warp.m", rows, 3, CvType.CV_32F); m.put(0, 0, data);
+            if (rows == 3) Imgproc.warpPerspective(src, dst, m, src.size(), Imgproc.INTER_LINEAR + Imgproc.WARP_INVERSE_MAP);
+            else Imgproc.warpAffine(src, dst, m, src.size(), Imgproc.INTER_LINEAR + Imgproc.WARP_INVERSE_MAP);
+        };
+    }
+
+    /** Runs the per-channel body inline, or fork/joined on the frame pool when running in parallel. */
+    private void forEachChannel(IntConsumer body) { forEachIndex(1, channels, body); }
+
+    /** Runs body for first..last inline, or fork/joined on the frame pool when running in parallel. */
+    private void forEachIndex(int first, int last, IntConsumer body) {
+        if (pool == null || first == last) { for (int i=first; i<=last; i++) body.accept(i); return; }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i=first; i<=last; i++) { final int idx = i; tasks.add(ForkJoinTask.adapt(() -> body.accept(idx))); }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    /**
+     * Tiled Dense flow (Tile Size > 0). Tiles are solved a row at a time, in parallel within the row, and each row of
+     * cores is warped as soon as the tiles around it are solved; flows and maps are then bounded by a band of tiles
+     * instead of the frame. All channels are copied in first, because cores are written back in place.
+     */
+    private void alignFrameTiled(int t, ImageProcessor ipCurr) {
+        Mat currPre = preprocessForFlow(ipCurr, mats.get("flow.pre"));
+        Mat[] src = new Mat[channels + 1];
+        for (int c=1; c<=channels; c++) src[c] = (c == refChannel) ? mats.get("flow.src") : imagePlusToMat(resStack.getProcessor(resImp.getStackIndex(c, 1, t)), mats.get("tile.src" + c));
+        double polySigma = (polyN == 7) ? 1.5 : 1.1;
+        TiledFlow.Solver solver = (disPreset >= 0) ? (ref, curr, flow) -> dis.get().calc(ref, curr, flow)
+                : (ref, curr, flow) -> Video.calcOpticalFlowFarneback(ref, curr, flow, 0.5, flowLevels, winSize, flowIters, polyN, polySigma, 0);
+        TiledFlow tiles = new TiledFlow((int) flowSize.width, (int) flowSize.height, Math.max(16, tileSize / flowScale));
+        if (verbose && t % 10 == 0) IJ.log(String.format("Dense Flow F%d: %dx%d tiles", t, tiles.cols(), tiles.rows()));
+        try {
+            for (int j=0; j<=tiles.rows(); j++) {
+                final int row = j;
+                if (row < tiles.rows()) forEachIndex(0, tiles.cols() - 1, i -> tiles.solve(i, row, denseSuperRef, currPre, solver));
+                if (row > 0) forEachIndex(0, tiles.cols() - 1, i -> warpCore(t, tiles, i, row - 1, src));
+                if (row > 1) tiles.releaseRow(row - 2);
+            }
+        } finally { tiles.release(); }
+    }
+
+    /** Warps the full-resolution area of core (i, j) of every channel from the copied-in frame src. */
+    private void warpCore(int t, TiledFlow tiles, int i, int j, Mat[] src) {
+        Rect core = tiles.core(i, j);
+        double sx = src[1].cols() / flowSize.width, sy = src[1].rows() / flowSize.height;
+        int x0 = (int) Math.round(core.x * sx), x1 = (int) Math.round((core.x + core.width) * sx);
+        int y0 = (int) Math.round(core.y * sy), y1 = (int) Math.round((core.y + core.height) * sy);
+        int w = x1 - x0, h = y1 - y0;
+        if (w <= 0 || h <= 0) return;
+
+        Mat gx = mats.get("tile.gx", h, w, CvType.CV_32F); Mat gy = mats.get("tile.gy", h, w, CvType.CV_32F);
+        float[] rowX = new float[w]; for (int x=0; x<w; x++) rowX[x] = x0 + x;
+        for (int y=0; y<h; y++) { gx.put(y, 0, rowX); gy.row(y).setTo(Scalar.all(y0 + y)); }
+
+        Mat flow = mats.get("tile.flow");
+        if (flowScale == 1) tiles.blend(new Rect(x0, y0, w, h), flow);
+        else {
+            // Sample the blended coarse field at the full-resolution pixel centres, as the untiled resize() does
+            int ex0 = Math.max(0, (int) Math.floor((x0 + 0.5) / sx - 0.5)), ex1 = Math.min((int) flowSize.width, (int) Math.floor((x1 - 0.5) / sx - 0.5) + 2);
+            int ey0 = Math.max(0, (int) Math.floor((y0 + 0.5) / sy - 0.5)), ey1 = Math.min((int) flowSize.height, (int) Math.floor((y1 - 0.5) / sy - 0.5) + 2);
+            Mat coarse = mats.get("tile.coarse"); tiles.blend(new Rect(ex0, ey0, ex1 - ex0, ey1 - ey0), coarse);
+            Mat ux = mats.get("tile.ux"); Mat uy = mats.get("tile.uy");
+            gx.convertTo(ux, CvType.CV_32F, 1.0 / sx, 0.5 / sx - 0.5 - ex0); gy.convertTo(uy, CvType.CV_32F, 1.0 / sy, 0.5 / sy - 0.5 - ey0);
+            Imgproc.remap(coarse, flow, ux, uy, Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE);
+        }
+
+        Mat fx = mats.get("tile.fx"); Mat fy = mats.get("tile.fy");
+        Core.extractChannel(flow, fx, 0); Core.extractChannel(flow, fy, 1);
+        Mat mapX = mats.get("tile.mx"); Mat mapY = mats.get("tile.my");
+        Core.scaleAdd(fx, sx, gx, mapX); Core.scaleAdd(fy, sy, gy, mapY);
+        Mat xy = mats.get("tile.xy"); Mat frac = mats.get("tile.frac");
+        Imgproc.convertMaps(mapX, mapY, xy, frac, CvType.CV_16SC2, false);
+        Mat dst = mats.get("tile.dst");
+        for (int c=1; c<=channels; c++) {
+            Imgproc.remap(src[c], dst, xy, frac, interp);
+            insertTile(resStack.getProcessor(resImp.getStackIndex(c, 1, t)), dst, x0, y0);
+        }
+    }
+
+    /** Writes tile (same pixel type as ip) into ip at (x0, y0), row by row into the pixel array, so disjoint tiles can be written concurrently. */
+    private void insertTile(ImageProcessor ip, Mat tile, int x0, int y0) {
+        ImageProcessor part = ip.createProcessor(tile.cols(), tile.rows());
+        updateImageProcessor(part, tile);
+        Object from = part.getPixels(), to = ip.getPixels();
+        int w = tile.cols(), width = ip.getWidth();
+        for (int y=0; y<tile.rows(); y++) System.arraycopy(from, y * w, to, (y0 + y) * width + x0, w);
+    }
+
+    private void awaitFrame(Future<?> f) throws Exception {
+        try { f.get(); } catch (ExecutionException ex) { Throwable cause = ex.getCause(); if (cause instanceof Exception) throw (Exception) cause; throw ex; }
+    }
+    
+    /** Mean of depth frames from startFrame (kept in superMean), preprocessed for flow. */
+    Mat createSuperReference(ImagePlus imp, int channel, int startFrame, int depth, int totalFrames) {
+        superMean = Mat.zeros(imp.getHeight(), imp.getWidth(), CvType.CV_32F);
+        int count = 0;
+        for(int i = 0; i < depth; i++) {
+            int t = startFrame + i;
+            if (t > totalFrames) break;
+            int idx = imp.getStackIndex(channel, 1, t);
+            Imgproc.accumulate(imagePlusToMat(imp.getStack().getProcessor(idx), mats.get("flow.src")), superMean);
+            count++;
+        }
+        if (count > 0) Core.multiply(superMean, Scalar.all(1.0 / count), superMean);
+        return preprocessForFlow(superMean, new Mat());
+    }
+
+    /**
+     * Blends the aligned reference channel of timepoints first..last, in order, into the running mean with weight
+     * 1/refDepth (an exponential window of about Ref Depth frames), then rebuilds denseSuperRef in place.
+     * Runs between blocks, while no frame is in flight.
+     */
+    private void updateSuperReference(int first, int last) {
+        double weight = 1.0 / Math.max(1, refDepth);
+        for (int t=first; t<=last; t++) {
+            Imgproc.accumulateWeighted(imagePlusToMat(resStack.getProcessor(resImp.getStackIndex(refChannel, 1, t)), mats.get("flow.src")), superMean, weight);
+        }
+        preprocessForFlow(superMean, denseSuperRef);
+        if (verbose) IJ.log("FIA: Super reference refreshed after frame " + last);
+    }
+    
+    /** Bin to flowSize, normalize to 8-bit, blur and CLAHE into m8 (the CLAHE instance is reused per thread). */
+    private Mat preprocessForFlow(ImageProcessor ip, Mat m8) {
+        return preprocessForFlow(imagePlusToMat(ip, mats.get("flow.src")), m8);
+    }
+
+    private Mat preprocessForFlow(Mat mOriginal, Mat m8) {
+        Core.normalize(toFlowSize(mOriginal), m8, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
+        Imgproc.GaussianBlur(m8, m8, new Size(3, 3), 0);
+        clahe.get().apply(m8, m8);
+        return m8;
+    }
+
+    /** Fills mapX/mapY from the flow of ipCurr; returns ipCurr as copied in (pooled), reusable for its own warp. */
+    private Mat calculateDenseFlow(Mat superRef, ImageProcessor ipCurr, int t, Mat mapX, Mat mapY, WarmChain chain) {
+        Mat currPre = preprocessForFlow(ipCurr, mats.get("flow.pre"));
+        Mat flow = chain != null ? chain.flow : mats.get("flow");
+        if (disPreset >= 0) {
+            // DIS solves each frame from scratch in a fixed, preset-dependent time
+            dis.get().calc(superRef, currPre, flow);
+            flowToMaps(flow, mapX, mapY);
+            if (verbose && t % 10 == 0) IJ.log(String.format("Dense Flow F%d: DIS preset=%d", t, disPreset));
+            return mats.get("flow.src");
+        }
+        double polySigma = (polyN == 7) ? 1.5 : 1.1;
+        boolean cold = chain == null || !chain.warm;
+        if (!cold) {
+            // Only the frame-to-frame change is left: one pyramid level and one iteration from the previous field
+            Video.calcOpticalFlowFarneback(superRef, currPre, flow, 0.5, Math.min(flowLevels, 1), winSize, 1, polyN, polySigma, Video.OPTFLOW_USE_INITIAL_FLOW);
+            flowToMaps(flow, mapX, mapY);
+            double r = flowResidual(superRef, currPre, mapX, mapY);
+            if (r > 1.5 * chain.residual + 0.5) cold = true; // Residual jumped: the seed is off, restart
+            else chain.residual = 0.8 * chain.residual + 0.2 * r;
+        }
+        if (cold) {
+            Video.calcOpticalFlowFarneback(superRef, currPre, flow, 0.5, flowLevels, winSize, flowIters, polyN, polySigma, 0);
+            flowToMaps(flow, mapX, mapY);
+            if (chain != null) { chain.residual = flowResidual(superRef, currPre, mapX, mapY); chain.warm = true; coldStarts.incrementAndGet(); }
+        }
+        if (verbose && t % 10 == 0) IJ.log(String.format("Dense Flow F%d: win=%d, lev=%d, iter=%d%s", t, winSize, flowLevels, flowIters, cold ? "" : " (warm)"));
+        return mats.get("flow.src");
+    }
+
+    /** Mean absolute difference between the reference and the flow-corrected preprocessed frame. */
+    private double flowResidual(Mat superRef, Mat currPre, Mat mapX, Mat mapY) {
+        if (flowScale > 1) {
+            // Check at flow resolution, from the components flowToMaps() just extracted
+            mapX = mats.get("check.x"); mapY = mats.get("check.y");
+            Core.add(flowGridX, mats.get("flow.x"), mapX); Core.add(flowGridY, mats.get("flow.y"), mapY);
+        }
+        Mat check = mats.get("flow.check");
+        Imgproc.remap(currPre, check, mapX, mapY, Imgproc.INTER_LINEAR);
+        Core.absdiff(check, superRef, check);
+        return Core.mean(check).val[0];
+    }
+
+    private Mat calculateElasticFlow(Mat tpl8u, ImageProcessor ipCurr, int t, Mat mapX, Mat mapY) {
+         Mat curr8u = mats.get("elastic.curr");
+         Mat mCurr = imagePlusToMat(ipCurr, mats.get("flow.src")); toFlowSize(mCurr).convertTo(curr8u, CvType.CV_8UC1);
+         Mat flow = mats.get("flow"); 
+         Video.calcOpticalFlowFarneback(tpl8u, curr8u, flow, 0.5, 3, winSize, 3, 5, 1.1, 0);
+         flowToMaps(flow, mapX, mapY);
+         return mCurr;
+    }
+
+    /** map = grid + flow, per component, through pooled channel buffers. */
+    private void flowToMaps(Mat flow, Mat mapX, Mat mapY) {
+        Mat fx = mats.get("flow.x"); Mat fy = mats.get("flow.y");
+        Core.extractChannel(flow, fx, 0); Core.extractChannel(flow, fy, 1);
+        if (flowScale == 1) { Core.add(gridX, fx, mapX); Core.add(gridY, fy, mapY); return; }
+        // The field is smooth: upsample the coarse displacements straight into the maps, rescale them to full-resolution pixels
+        Imgproc.resize(fx, mapX, mapX.size(), 0, 0, Imgproc.INTER_LINEAR); Core.scaleAdd(mapX, mapX.cols() / flowSize.width, gridX, mapX);
+        Imgproc.resize(fy, mapY, mapY.size(), 0, 0, Imgproc.INTER_LINEAR); Core.scaleAdd(mapY, mapY.rows() / flowSize.height, gridY, mapY);
+    }
+
+    /** src binned to flowSize (pooled), or src itself at full scale. */
+    private Mat toFlowSize(Mat src) {
+        if (flowScale == 1) return src;
+        Mat small = mats.get("flow.bin");
+        Imgproc.resize(src, small, flowSize, 0, 0, Imgproc.INTER_AREA);
+        return small;
+    }
+
+    private void initMeshGrid(int w, int h) {
+        flowSize = new Size(Math.max(1, Math.round((double) w / flowScale)), Math.max(1, Math.round((double) h / flowScale)));
+        if (tileSize > 0) return; // Tiles build their own grids
+        Mat[] g = meshGrid(w, h); gridX = g[0]; gridY = g[1];
+        if (flowScale == 1) { flowGridX = gridX; flowGridY = gridY; }
+        else { g = meshGrid((int) flowSize.width, (int) flowSize.height); flowGridX = g[0]; flowGridY = g[1]; }
+    }
+    private Mat[] meshGrid(int w, int h) { Mat gx = new Mat(h, w, CvType.CV_32F); Mat gy = new Mat(h, w, CvType.CV_32F); float[] rowX = new float[w]; for(int i=0; i<w; i++) rowX[i] = i; for(int j=0; j<h; j++) gx.put(j, 0, rowX); float[] colY = new float[w]; for(int j=0; j<h; j++) { for(int i=0; i<w; i++) colY[i] = j; gy.put(j, 0, colY); } return new Mat[]{gx, gy}; }
+    private int eccMotionType(String mode) { switch (mode) { case "Translation": return Video.MOTION_TRANSLATION; case "Rigid": return Video.MOTION_EUCLIDEAN; case "Homography": return Video.MOTION_HOMOGRAPHY; default: return Video.MOTION_AFFINE; } }
+    private Mat identityWarp(int motion) { return motion == Video.MOTION_HOMOGRAPHY ? Mat.eye(3, 3, CvType.CV_32F) : Mat.eye(2, 3, CvType.CV_32F); }
+    private String matrixLine(int frame, Mat m) { float[] data = new float[m.rows() * 3]; m.get(0, 0, data); if (data.length == 9) return String.format("%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", frame, data[0], data[1], data[2], data[3], data[4], data[5], data[6], data[7], data[8]); return String.format("%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", frame, data[0], data[1], data[2], data[3], data[4], data[5]); }
+    private String legacyMatrixLine(int frame, double[][] wp, int type) { if (type == LegacyAligner.TRANSLATION) { return String.format("%d,1.0,0.0,%.6f,0.0,1.0,%.6f", frame, wp[0][0], wp[1][0]); } else { return String.format("%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", frame, wp[0][0]+1.0, wp[0][1], wp[0][2], wp[1][0], wp[1][1]+1.0, wp[1][2]); } }
+
+    /** Adds one Java/OpenCV pixel copy of ip to the bridge-traffic counter. */
+    private void countCopy(ImageProcessor ip) { bridgeBytes.addAndGet((long) ip.getPixelCount() * (ip.getBitDepth() == 24 ? 4 : ip.getBitDepth() / 8)); }
+    /** Copies ip into dst, reusing dst's native buffer when the shape and type already match. */
+    Mat imagePlusToMat(ImageProcessor ip, Mat dst) { countCopy(ip); int w = ip.getWidth(); int h = ip.getHeight(); if (ip instanceof ByteProcessor) { dst.create(h, w, CvType.CV_8UC1); dst.put(0,0,(byte[])ip.getPixels()); return dst; } else if (ip instanceof ShortProcessor) { dst.create(h, w, CvType.CV_16UC1); dst.put(0,0,(short[])ip.getPixels()); return dst; } else if (ip instanceof FloatProcessor) { dst.create(h, w, CvType.CV_32FC1); dst.put(0,0,(float[])ip.getPixels()); return dst; } return null; }
+    private Mat imagePlusToMat(ImageProcessor ip) { countCopy(ip); int w = ip.getWidth(); int h = ip.getHeight(); if (ip instanceof ByteProcessor) { Mat m = new Mat(h, w, CvType.CV_8UC1); m.put(0,0,(byte[])ip.getPixels()); return m; } else if (ip instanceof ShortProcessor) { Mat m = new Mat(h, w, CvType.CV_16UC1); m.put(0,0,(short[])ip.getPixels()); return m; } else if (ip instanceof FloatProcessor) { Mat m = new Mat(h, w, CvType.CV_32FC1); m.put(0,0,(float[])ip.getPixels()); return m; } return null; }
+    void updateImageProcessor(ImageProcessor ip, Mat m) { countCopy(ip); if (ip instanceof ByteProcessor) { if(m.type()!=CvType.CV_8UC1) m.convertTo(m, CvType.CV_8UC1); m.get(0,0,(byte[])ip.getPixels()); } else if (ip instanceof ShortProcessor) { if(m.type()!=CvType.CV_16UC1) m.convertTo(m, CvType.CV_16UC1); m.get(0,0,(short[])ip.getPixels()); } else if (ip instanceof FloatProcessor) { if(m.type()!=CvType.CV_32FC1) m.convertTo(m, CvType.CV_32FC1); m.get(0,0,(float[])ip.getPixels()); } }
+}
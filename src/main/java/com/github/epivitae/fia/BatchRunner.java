@@ -0,0 +1,231 @@
+package com.github.epivitae.fia;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Aligns a list of files with one set of AlignParams, headless.
+ * Frames of every file go to one shared frame pool, so a short file finishing early leaves no cores idle.
+ * Files are admitted against a memory budget: each one reserves its estimated working set before it is
+ * opened and several run at once only while their estimates fit. Uncompressed TIFFs are memory-mapped and
+ * every result is streamed to the output folder, so a file's working set is a window of frames rather than
+ * the whole movie. A per-file throughput summary is written next to the results (FIA_Batch_Summary.csv).
+ */
+public class BatchRunner {
+
+    /** Outcome of one file. */
+    public static class Report {
+        public final File file;
+        public String status = "pending", output;
+        public int timepoints;
+        public double megabytes, seconds;
+
+        Report(File file) { this.file = file; }
+
+        public double framesPerSecond() { return seconds > 0 ? timepoints / seconds : 0; }
+        public double megabytesPerSecond() { return seconds > 0 ? megabytes / seconds : 0; }
+    }
+
+    private static final long MB = 1L << 20;
+
+    private final AlignParams params;
+    private final File outputDir;
+    private final int threads, maxParallel;
+    private final double memoryFraction;
+
+    /**
+     * @param threads        size of the shared frame pool
+     * @param maxParallel    files aligned at once (0 = as many as the memory budget admits, up to threads)
+     * @param memoryFraction share of the maximum heap that admitted files may reserve
+     */
+    public BatchRunner(AlignParams params, File outputDir, int threads, int maxParallel, double memoryFraction) {
+        this.params = params.copy(); this.outputDir = outputDir;
+        this.threads = Math.max(1, threads); this.maxParallel = maxParallel;
+        this.memoryFraction = Math.max(0.05, Math.min(1.0, memoryFraction));
+    }
+
+    /** Files in dir matching a glob (e.g. "*.tif"), sorted by name; or, if source is a text file, the paths it lists (one per line, # comments). */
+    public static List<File> listFiles(File source, String pattern) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (source.isDirectory()) {
+            PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + (pattern == null || pattern.isEmpty() ? "*" : pattern));
+            File[] all = source.listFiles();
+            if (all != null) for (File f : all) if (f.isFile() && m.matches(Paths.get(f.getName()))) files.add(f);
+            files.sort((a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+        } else {
+            try (BufferedReader r = new BufferedReader(new FileReader(source))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    File f = new File(line);
+                    files.add(f.isAbsolute() ? f : new File(source.getParentFile(), line));
+                }
+            }
+        }
+        return files;
+    }
+
+    /** Aligns every file; failures are reported per file and do not stop the batch. */
+    public List<Report> run(List<File> files) throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) throw new IOException("Can't create " + outputDir);
+        long budgetMb = Math.max(1, Math.min(Integer.MAX_VALUE, (long) (memoryFraction * IJ.maxMemory() / MB)));
+        Semaphore memory = new Semaphore((int) budgetMb, true);
+        int slots = Math.max(1, maxParallel > 0 ? maxParallel : threads);
+        IJ.log(String.format("FIA Batch: %d file(s), %d thread(s), up to %d at once, memory budget %d MB", files.size(), threads, Math.min(slots, Math.max(1, files.size())), budgetMb));
+
+        ForkJoinPool framePool = new ForkJoinPool(threads);
+        ExecutorService fileThreads = Executors.newFixedThreadPool(slots);
+        List<Report> reports = new ArrayList<>();
+        List<Future<?>> runs = new ArrayList<>();
+        long t0 = System.nanoTime();
+        // OpenCV's threads are process-wide: set once for the batch (the frame pool's share per file at once), not per file
+        boolean cv = Aligner.isOpenCVLoaded();
+        if (cv) AlignmentRun.enterOpenCV(Math.max(1, threads / Math.min(slots, Math.max(1, files.size()))));
+        try {
+            for (File f : files) {
+                Report rep = new Report(f);
+                reports.add(rep);
+                runs.add(fileThreads.submit(() -> alignFile(rep, framePool, memory, (int) budgetMb)));
+            }
+            for (Future<?> run : runs) {
+                try { run.get(); } catch (ExecutionException e) { IJ.log("FIA Batch: " + e.getCause()); }
+            }
+        } finally {
+            fileThreads.shutdownNow();
+            framePool.shutdownNow();
+            if (cv) AlignmentRun.exitOpenCV();
+        }
+
+        writeSummary(reports, new File(outputDir, "FIA_Batch_Summary.csv"));
+        int ok = 0; double mb = 0;
+        for (Report r : reports) if (r.status.equals("ok")) { ok++; mb += r.megabytes; }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        IJ.log(String.format("FIA Batch: %d of %d file(s) aligned in %.1f s (%.1f MB/s overall)", ok, reports.size(), secs, mb / Math.max(1e-9, secs)));
+        return reports;
+    }
+
+    private void alignFile(Report rep, ForkJoinPool framePool, Semaphore memory, int budgetMb) {
+        File file = rep.file;
+        MappedStack mapped = null;
+        int reservedMb = 0; boolean reserved = false;
+        try {
+            FileInfo[] info = tiffInfo(file);
+            // Compressed, RGB and strip-scattered TIFFs are read into memory instead
+            boolean mappable = info != null && MappedStack.canMap(info);
+            reservedMb = (int) Math.max(1, Math.min(budgetMb, (estimateBytes(file, info, mappable) + MB - 1) / MB));
+            rep.status = "waiting";
+            memory.acquire(reservedMb);
+            reserved = true;
+
+            ImagePlus imp;
+            if (mappable) { mapped = MappedStack.openTiff(file.getPath()); imp = mapped.toImagePlus(file.getName()); }
+            else imp = IJ.openImage(file.getPath());
+            if (imp == null) throw new IOException("Can't open");
+            if (imp.getBitDepth() == 24) throw new IOException("RGB images are not supported; split the channels first");
+
+            AlignParams p = params.copy();
+            int nTimepoints = imp.getNFrames() > 1 ? imp.getNFrames() : imp.getNSlices();
+            p.refT = Math.max(1, Math.min(p.refT, nTimepoints));
+            p.virtualOutput = false;
+            p.streamPath = new File(outputDir, "FIA-" + baseName(file) + ".tif").getPath();
+            rep.status = "running";
+            AlignResult r = new Aligner(p, framePool).align(imp);
+            if (r.getImage() == null) throw new IOException("No output");
+            if (r.getImage().getStack() instanceof MappedStack) ((MappedStack) r.getImage().getStack()).close();
+            if (!r.getMatrix().isEmpty()) writeLines(r.getMatrix(), new File(outputDir, "FIA-" + baseName(file) + "_Matrix.csv"));
+            if (!mappable) imp.flush();
+
+            rep.timepoints = r.getTimepoints(); rep.megabytes = r.getBytes() / (double) MB; rep.seconds = r.getSeconds();
+            rep.output = p.streamPath; rep.status = "ok";
+            IJ.log(String.format("FIA Batch: %s: %d timepoints in %.1f s (%.1f frames/s, %.1f MB/s)", file.getName(), rep.timepoints, rep.seconds, rep.framesPerSecond(), rep.megabytesPerSecond()));
+        } catch (InterruptedException e) {
+            rep.status = "cancelled";
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            rep.status = "failed: " + (e.getMessage() != null ? e.getMessage() : e.toString());
+            IJ.log("FIA Batch: " + file.getName() + ": " + rep.status);
+        } finally {
+            if (mapped != null) mapped.close();
+            if (reserved) memory.release(reservedMb);
+        }
+    }
+
+    /**
+     * Working set of one file. A mapped file holds a window of timepoints (the load look-ahead plus frames waiting to be
+     * written), capped at the whole movie; anything else is read into memory in full before it is aligned. So is a
+     * z-only stack (one frame, several slices): its aligned slices are never evicted while it runs.
+     */
+    private long estimateBytes(File file, FileInfo[] info, boolean mappable) {
+        if (info == null) return 2 * file.length();
+        FileInfo fi = info[0];
+        long frameBytes = (long) fi.width * fi.height * Math.max(1, fi.getBytesPerPixel());
+        int images = Math.max(info.length, fi.nImages);
+        long pixelBytes = frameBytes * images;
+        if (!mappable) return pixelBytes;
+        // Dimensions as MappedStack reads them: without a consistent description, every image is a slice
+        int channels = intProperty(fi.description, "channels"), slices = intProperty(fi.description, "slices"), frames = intProperty(fi.description, "frames");
+        if ((long) channels * slices * frames != images) { channels = 1; slices = images; frames = 1; }
+        if (frames == 1 && slices > 1) return pixelBytes;
+        long window = (long) channels * frameBytes * (4L * threads + 2L * params.ioThreads);
+        return Math.min(pixelBytes, window);
+    }
+
+    // key= from an ImageJ TIFF description, 1 if missing
+    private static int intProperty(String description, String key) {
+        if (description != null) for (String line : description.split("\n")) if (line.startsWith(key + "=")) {
+            try { return Math.max(1, Integer.parseInt(line.substring(key.length() + 1).trim())); } catch (NumberFormatException e) { return 1; }
+        }
+        return 1;
+    }
+
+    /** TIFF directory of file, or null if it isn't a (readable) TIFF; BigTIFF is refused, as ImageJ would misread it. */
+    private static FileInfo[] tiffInfo(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (!name.endsWith(".tif") && !name.endsWith(".tiff")) return null;
+        if (MappedStack.isBigTiff(file.getPath())) throw new IOException(MappedStack.NO_BIGTIFF);
+        try {
+            FileInfo[] fi = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+            return fi == null || fi.length == 0 ? null : fi;
+        } catch (IOException e) { return null; }
+    }
+
+    private static String baseName(File f) {
+        String n = f.getName(); int dot = n.lastIndexOf('.');
+        return dot > 0 ? n.substring(0, dot) : n;
+    }
+
+    private static void writeSummary(List<Report> reports, File csv) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList("File,Status,Timepoints,Size (MB),Seconds,Frames/s,MB/s,Output"));
+        for (Report r : reports) {
+            lines.add(String.format(Locale.ROOT, "\"%s\",\"%s\",%d,%.1f,%.2f,%.2f,%.1f,\"%s\"", r.file.getPath(), r.status.replace('"', '\''), r.timepoints, r.megabytes, r.seconds, r.framesPerSecond(), r.megabytesPerSecond(), r.output == null ? "" : r.output));
+        }
+        writeLines(lines, csv);
+    }
+
+    private static void writeLines(List<String> lines, File file) throws IOException {
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) { for (String l : lines) { w.write(l); w.newLine(); } }
+    }
+}
@@ -12,6 +12,7 @@ public class FIAHelp {
                 "<ul>" +
                 "<li><b>OpenCV (Default):</b> High precision ECC algorithm. Supports true Rigid (Rotation).</li>" +
                 "<li><b>Legacy:</b> Based on 'Image Stabilizer' (Kang Li). Robust for large shifts. (No Rigid)</li>" +
+                "<li><b>Phase Corr:</b> FFT phase correlation. Translation only, constant cost per frame for any shift size.</li>" +
                 "</ul>" +
                 
                 "<hr>" +
@@ -22,6 +23,7 @@ public class FIAHelp {
                 "<li><b>Translation:</b> XY shift only.</li>" +
                 "<li><b>Rigid:</b> Shift + Rotation. (Requires OpenCV)</li>" +
                 "<li><b>Affine:</b> Shift + Rotation + Scale/Shear.</li>" +
+                "<li><b>Homography:</b> Affine + Perspective tilt. (Requires OpenCV)</li>" +
                 "</ul>" +
                 
                 "<b><font color='#D25000'>Step 2: Local (Deformable)</font></b>" +
@@ -36,6 +38,23 @@ public class FIAHelp {
                 "<ul>" +
                 "<li><b>Update Coeff (Legacy):</b> Default <b>0.90</b>. <br>Controls reference frame update. 1.0 = Fixed Ref, < 1.0 = Rolling Ref.</li>" +
                 "<li><b>Flow WinSize (Elastic):</b> Default <b>5</b>. <br>Small (5-10) for local jitter; Large (20+) for global shape.</li>" +
+                "<li><b>Ref Refresh (Dense):</b> Default <b>0</b> (fixed). <br>N = blend aligned frames into the super reference every N frames; for long, drifting recordings.</li>" +
+                "<li><b>Tile Size (Dense):</b> Default <b>0</b> (whole frame). <br>e.g. 1024 = overlapping tiles in parallel, low memory; for huge mosaics.</li>" +
+                "<li><b>Flow Engine (Dense):</b> Default <b>Farneback</b>. <br>DIS Ultrafast/Fast/Medium: faster flow for high frame rates (~5x for Ultrafast).</li>" +
+                "<li><b>Flow Scale (Elastic/Dense):</b> Default <b>1</b>. <br>1/2 or 1/4 computes the flow on a binned frame: ~4x / ~12x faster on smooth deformations.</li>" +
+                "<li><b>Warm Start (Dense):</b> Off by default. <br>Each flow starts from the previous frame's: faster on smooth motion, auto cold restart on jumps.</li>" +
+                "<li><b>Pyramid Levels:</b> Default <b>1</b>. <br>Coarse-to-fine levels for Legacy, and for OpenCV with Coarse-to-fine ECC. Raise for large frames (2048+).</li>" +
+                "<li><b>Coarse-to-fine ECC:</b> Off by default (full resolution only). <br>OpenCV solves on the Pyramid Levels first; fewer full-size iterations on large frames.</li>" +
+                "<li><b>Coarse Init (FFT):</b> Off by default. <br>Seeds OpenCV/Legacy with a phase-correlation shift. Use for large jumps.</li>" +
+                "<li><b>Warm Start (Legacy):</b> Off by default. <br>Each frame starts from the motion of the frames before: fewer iterations on smooth drift.</li>" +
+                "<li><b>Estimate in ROI:</b> Draw an area ROI first. <br>Motion is measured inside it only; the full frame is warped. Faster on wide fields.</li>" +
+                "<li><b>Threads:</b> Default = CPU cores. <br>Frames (and channels) are aligned in parallel; OpenCV shares the same budget. 1 = Serial.</li>" +
+                "<li><b>I/O Threads:</b> Default = 2. <br>Load frames ahead of the aligner and write streamed output.</li>" +
+                "<li><b>Keyframe Every:</b> Default <b>0</b> (off). <br>N = full estimation every N frames and on sudden moves (Motion Thr, px); frames in between are interpolated.</li>" +
+                "<li><b>Virtual Output:</b> Off by default. <br>Result is warped on demand instead of copied into RAM (global modes only).</li>" +
+                "<li><b>Stream to File:</b> Off by default. <br>Aligned frames are written to a TIFF (ImageJ large-file layout past 4 GB) or .raw as they finish and leave RAM.</li>" +
+                "<li><b>File &gt; Open Mapped Stack:</b> <br>Uncompressed TIFF/raw read from disk on demand. With Virtual Output, aligns files larger than RAM.</li>" +
+                "<li><b>Plugins &gt; FIA Batch Align:</b> <br>Aligns a folder (or file list) headless into an output folder, with a per-file throughput summary. Macro-recordable.</li>" +
                 "</ul>" +
                 
                 "<hr>" +
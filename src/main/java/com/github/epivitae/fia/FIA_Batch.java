@@ -0,0 +1,136 @@
+package com.github.epivitae.fia;
+
+/**
+ * PROJECT: FIA (Fluorescence Image Aligner)
+ * MENU: Plugins > Biosensor Tool > FIA Batch Align
+ *
+ * Aligns every matching file of a folder (or every path of a list file) with one setting and streams the
+ * results to an output folder. The parameters are SciJava inputs, so a run is macro-recordable and works headless:
+ *   ImageJ --headless --run "FIA Batch Align" "input='/data/raw',output='/data/aligned',mode='Dense'"
+ */
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+import ij.IJ;
+
+import org.opencv.video.DISOpticalFlow;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.List;
+
+@Plugin(type = Command.class, menuPath = "Plugins>Biosensor Tool>FIA Batch Align")
+public class FIA_Batch implements Command {
+
+    @Parameter(label = "Input folder", style = FileWidget.DIRECTORY_STYLE)
+    private File input;
+
+    @Parameter(label = "File list (optional)", required = false, description = "Text file with one image path per line; used instead of the input folder")
+    private File list;
+
+    @Parameter(label = "File pattern")
+    private String pattern = "*.tif";
+
+    @Parameter(label = "Output folder", style = FileWidget.DIRECTORY_STYLE)
+    private File output;
+
+    @Parameter(label = "Mode", choices = {"Translation", "Rigid", "Affine", "Homography", "Elastic", "Dense"})
+    private String mode = "Rigid";
+
+    @Parameter(label = "Engine", choices = {"OpenCV", "Legacy", "Phase Corr"})
+    private String engine = "OpenCV";
+
+    @Parameter(label = "Reference timepoint")
+    private int reference = 1;
+
+    @Parameter(label = "Max Iterations")
+    private int maxIter = 200;
+
+    @Parameter(label = "Coarse-to-fine ECC (OpenCV)")
+    private boolean eccPyramid = false;
+
+    @Parameter(label = "Flow Engine (Dense)", choices = {"Farneback", "DIS Ultrafast", "DIS Fast", "DIS Medium"})
+    private String flowEngine = "Farneback";
+
+    @Parameter(label = "Flow WinSize")
+    private int winSize = 5;
+
+    @Parameter(label = "Ref Depth (Frames)")
+    private int refDepth = 5;
+
+    @Parameter(label = "Interpolation", choices = {"Cubic", "Linear"})
+    private String interpolation = "Cubic";
+
+    @Parameter(label = "Warm Start (Dense Farneback, Legacy)")
+    private boolean warmStart = false;
+
+    @Parameter(label = "Keyframe every (0 = off)", min = "0")
+    private int keyframes = 0;
+
+    @Parameter(label = "Motion threshold (px)")
+    private double motionThreshold = 1.0;
+
+    @Parameter(label = "Threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "I/O Threads")
+    private int ioThreads = 2;
+
+    @Parameter(label = "Files at once (0 = by memory)", min = "0")
+    private int parallel = 0;
+
+    @Parameter(label = "Memory budget (% of max heap)", min = "5", max = "100")
+    private int memory = 75;
+
+    @Parameter(label = "Save Matrix (Global)")
+    private boolean saveMatrix = false;
+
+    @Parameter(label = "Verbose Log")
+    private boolean verbose = false;
+
+    @Override
+    public void run() {
+        AlignParams p = new AlignParams();
+        p.mode = mode;
+        p.legacy = engine.equals("Legacy");
+        p.phase = engine.equals("Phase Corr");
+        if (!p.legacy && !Aligner.loadOpenCV()) {
+            if (!p.isGlobal()) { IJ.error("FIA Batch Align", mode + " mode needs OpenCV, which failed to load."); return; }
+            IJ.log("FIA Batch: OpenCV unavailable, using the Legacy engine.");
+            p.legacy = true; p.phase = false;
+        }
+        p.refT = Math.max(1, reference);
+        p.maxIter = maxIter;
+        p.eccPyramid = eccPyramid;
+        p.winSize = winSize;
+        p.refDepth = refDepth;
+        int[] disPresets = {-1, DISOpticalFlow.PRESET_ULTRAFAST, DISOpticalFlow.PRESET_FAST, DISOpticalFlow.PRESET_MEDIUM};
+        p.disPreset = mode.equals("Dense") ? disPresets[indexOf(flowEngine, "Farneback", "DIS Ultrafast", "DIS Fast", "DIS Medium")] : -1;
+        p.interp = interpolation.equals("Linear") ? Imgproc.INTER_LINEAR : Imgproc.INTER_CUBIC;
+        p.warmStart = warmStart;
+        p.keyframeInterval = Math.max(0, keyframes);
+        p.motionThreshold = Math.max(0, motionThreshold);
+        p.threads = Math.max(1, threads);
+        p.ioThreads = Math.max(1, ioThreads);
+        p.saveMatrix = saveMatrix;
+        p.verbose = verbose;
+
+        try {
+            List<File> files = BatchRunner.listFiles(list != null && list.isFile() ? list : input, pattern);
+            if (files.isEmpty()) { IJ.log("FIA Batch: no files match " + pattern + " in " + input); return; }
+            new BatchRunner(p, output, p.threads, Math.max(0, parallel), memory / 100.0).run(files);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IJ.log("FIA Batch: cancelled.");
+        } catch (Exception e) {
+            IJ.log("FIA Batch: " + e.getMessage());
+        }
+    }
+
+    private static int indexOf(String value, String... choices) {
+        for (int i=0; i<choices.length; i++) if (choices[i].equals(value)) return i;
+        return 0;
+    }
+}
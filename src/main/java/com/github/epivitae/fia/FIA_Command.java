@@ -11,26 +11,18 @@ import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
+import ij.ImageListener;
 import ij.CompositeImage;
 import ij.WindowManager;
-import ij.process.ImageProcessor;
+import ij.gui.Roi;
 import ij.process.LUT;
-import ij.process.ByteProcessor;
-import ij.process.ShortProcessor;
-import ij.process.FloatProcessor;
 import ij.io.SaveDialog;
+import ij.io.OpenDialog;
+import ij.io.ImportDialog;
+import ij.io.FileInfo;
 
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.core.TermCriteria;
-import org.opencv.video.Video;
+import org.opencv.video.DISOpticalFlow;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.imgproc.CLAHE;
-import org.opencv.core.Core;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import nu.pattern.OpenCV;
 
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -42,8 +34,8 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
@@ -56,7 +48,7 @@ public class FIA_Command implements Command {
     @Override
     public void run() {
         loadVersionInfo();
-        if (!openCVLoaded) openCVLoaded = loadOpenCV();
+        if (!openCVLoaded) openCVLoaded = Aligner.loadOpenCV();
         
         SwingUtilities.invokeLater(() -> {
             try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception e) {}
@@ -74,29 +66,21 @@ public class FIA_Command implements Command {
         } catch (Exception ex) {}
     }
 
-    private boolean loadOpenCV() {
-        try {
-            OpenCV.loadShared();
-            IJ.log("FIA: OpenCV (Offline) loaded successfully.");
-            return true;
-        } catch (Throwable e) {
-            IJ.log("FIA Warning: OpenCV failed to load (" + e.getMessage() + "). Legacy mode only.");
-            return false;
-        }
-    }
-
     // --- GUI Class ---
     class FIAGui extends JFrame {
-        private JComboBox<String> cmbEngine, cmbPyramid, cmbPolyN;
-        private JToggleButton btnTranslation, btnRigid, btnAffine, btnElastic, btnDense;
+        private JComboBox<String> cmbEngine, cmbPyramid, cmbPolyN, cmbFlowScale, cmbFlowEngine, cmbInterp;
+        private JToggleButton btnTranslation, btnRigid, btnAffine, btnHomography, btnElastic, btnDense;
         
         // Global Parameters
         private JTextField txtMaxIter, txtEpsilon, txtAlpha;
         
         // Local/Dense Parameters
-        private JTextField txtWinSize, txtRefDepth, txtFlowLevels, txtFlowIters;
+        private JTextField txtWinSize, txtRefDepth, txtRefRefresh, txtFlowLevels, txtFlowIters, txtTileSize;
         
-        private JCheckBox chkLog, chkSaveMatrix;
+        // Execution
+        private JTextField txtThreads, txtIoThreads, txtKeyframe, txtMotionThr;
+        
+        private JCheckBox chkLog, chkSaveMatrix, chkCoarseInit, chkEccPyramid, chkRoi, chkVirtual, chkWarmFlow, chkWarmLegacy, chkStream;
         private JButton btnRun;
         private JProgressBar progressBar;
         private JLabel statusLabel;
@@ -152,11 +136,11 @@ public class FIA_Command implements Command {
             splitPanel.setOpaque(false);
             
             // --- LEFT COLUMN (Modes) ---
-            JPanel leftCol = new JPanel(); leftCol.setLayout(new BoxLayout(leftCol, BoxLayout.Y_AXIS)); leftCol.setOpaque(false); leftCol.setPreferredSize(new Dimension(130, 240)); 
+            JPanel leftCol = new JPanel(); leftCol.setLayout(new BoxLayout(leftCol, BoxLayout.Y_AXIS)); leftCol.setOpaque(false); leftCol.setPreferredSize(new Dimension(130, 272)); 
 
             JLabel lblStep1 = new JLabel("Step 1: Global"); lblStep1.setFont(FONT_SECTION_HEAD); lblStep1.setForeground(COLOR_THEME_BLUE); lblStep1.setAlignmentX(Component.LEFT_ALIGNMENT); leftCol.add(lblStep1); leftCol.add(Box.createVerticalStrut(2));
 
-            String[] engines = openCVLoaded ? new String[]{"Engine: OpenCV", "Engine: Legacy"} : new String[]{"Engine: Legacy"};
+            String[] engines = openCVLoaded ? new String[]{"Engine: OpenCV", "Engine: Legacy", "Engine: Phase Corr"} : new String[]{"Engine: Legacy"};
             cmbEngine = new JComboBox<>(engines); cmbEngine.setFont(new Font("Arial", Font.PLAIN, 11)); cmbEngine.setMaximumSize(new Dimension(Short.MAX_VALUE, 22)); cmbEngine.setAlignmentX(Component.LEFT_ALIGNMENT);
             cmbEngine.addItemListener(e -> updateUIState());
             leftCol.add(cmbEngine); leftCol.add(Box.createVerticalStrut(5));
@@ -164,7 +148,8 @@ public class FIA_Command implements Command {
             btnTranslation = createUnifiedButton("Translation"); btnTranslation.addActionListener(e -> selectMode(btnTranslation));
             btnRigid = createUnifiedButton("Rigid"); btnRigid.addActionListener(e -> selectMode(btnRigid));
             btnAffine = createUnifiedButton("Affine"); btnAffine.addActionListener(e -> selectMode(btnAffine));
-            leftCol.add(btnTranslation); leftCol.add(Box.createVerticalStrut(4)); leftCol.add(btnRigid); leftCol.add(Box.createVerticalStrut(4)); leftCol.add(btnAffine);
+            btnHomography = createUnifiedButton("Homography"); btnHomography.addActionListener(e -> selectMode(btnHomography));
+            leftCol.add(btnTranslation); leftCol.add(Box.createVerticalStrut(4)); leftCol.add(btnRigid); leftCol.add(Box.createVerticalStrut(4)); leftCol.add(btnAffine); leftCol.add(Box.createVerticalStrut(4)); leftCol.add(btnHomography);
             
             leftCol.add(Box.createVerticalStrut(12)); 
             JLabel lblStep2 = new JLabel("Step 2: Local"); lblStep2.setFont(FONT_SECTION_HEAD); lblStep2.setForeground(COLOR_THEME_ORANGE); lblStep2.setAlignmentX(Component.LEFT_ALIGNMENT); leftCol.add(lblStep2); leftCol.add(Box.createVerticalStrut(5));
@@ -191,14 +176,50 @@ public class FIA_Command implements Command {
             cmbPyramid = new JComboBox<>(levels); cmbPyramid.setSelectedIndex(1); cmbPyramid.setFont(FONT_INPUT); cmbPyramid.setMaximumSize(new Dimension(70, 24)); cmbPyramid.setAlignmentX(Component.LEFT_ALIGNMENT);
             JPanel pPyr = new JPanel(); pPyr.setLayout(new BoxLayout(pPyr, BoxLayout.Y_AXIS)); pPyr.setOpaque(false); pPyr.setAlignmentX(Component.LEFT_ALIGNMENT); pPyr.add(lblPyramid); pPyr.add(cmbPyramid); pPyr.add(Box.createVerticalStrut(6));
             panelGlobalSettings.add(pPyr);
+            chkEccPyramid = new JCheckBox("Coarse-to-fine ECC"); chkEccPyramid.setFont(FONT_CHECKBOX); chkEccPyramid.setFocusPainted(false); chkEccPyramid.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkEccPyramid.setToolTipText("OpenCV: solve ECC over the Pyramid Levels, coarse to fine (off: full resolution only)");
+            chkEccPyramid.addItemListener(e -> updateUIState());
+            panelGlobalSettings.add(chkEccPyramid);
             panelGlobalSettings.add(createCompactField("Update Coeff:", txtAlpha = new JTextField("0.90")));
+            chkCoarseInit = new JCheckBox("Coarse Init (FFT)"); chkCoarseInit.setFont(FONT_CHECKBOX); chkCoarseInit.setFocusPainted(false); chkCoarseInit.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkCoarseInit.setToolTipText("Seed each frame with a phase-correlation shift (large displacements)");
+            panelGlobalSettings.add(chkCoarseInit);
+            chkWarmLegacy = new JCheckBox("Warm Start (Temporal)"); chkWarmLegacy.setFont(FONT_CHECKBOX); chkWarmLegacy.setFocusPainted(false); chkWarmLegacy.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkWarmLegacy.setToolTipText("Legacy: start each frame from the transform predicted by the frames before");
+            panelGlobalSettings.add(chkWarmLegacy);
+            chkRoi = new JCheckBox("Estimate in ROI"); chkRoi.setFont(FONT_CHECKBOX); chkRoi.setFocusPainted(false); chkRoi.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkRoi.setToolTipText("Estimate motion inside the image's area ROI only; the full frame is still warped");
+            panelGlobalSettings.add(chkRoi);
             rightCol.add(panelGlobalSettings);
 
             // 2b. Local/Dense Settings Panel
             panelLocalSettings = new JPanel(); panelLocalSettings.setLayout(new BoxLayout(panelLocalSettings, BoxLayout.Y_AXIS)); panelLocalSettings.setOpaque(false); panelLocalSettings.setAlignmentX(Component.LEFT_ALIGNMENT);
             
+            JLabel lblFlowEngine = new JLabel("Flow Engine (Dense):"); lblFlowEngine.setFont(FONT_LABEL); lblFlowEngine.setAlignmentX(Component.LEFT_ALIGNMENT);
+            String[] flowEngines = {"Farneback", "DIS Ultrafast", "DIS Fast", "DIS Medium"};
+            cmbFlowEngine = new JComboBox<>(flowEngines); cmbFlowEngine.setSelectedIndex(0); cmbFlowEngine.setFont(FONT_INPUT); cmbFlowEngine.setMaximumSize(new Dimension(120, 24)); cmbFlowEngine.setAlignmentX(Component.LEFT_ALIGNMENT);
+            cmbFlowEngine.setToolTipText("DIS (Dense Inverse Search) trades some accuracy for speed; Farneback uses the settings below");
+            cmbFlowEngine.addItemListener(e -> updateUIState());
+            JPanel pFlowEngine = new JPanel(); pFlowEngine.setLayout(new BoxLayout(pFlowEngine, BoxLayout.Y_AXIS)); pFlowEngine.setOpaque(false); pFlowEngine.setAlignmentX(Component.LEFT_ALIGNMENT); pFlowEngine.add(lblFlowEngine); pFlowEngine.add(cmbFlowEngine); pFlowEngine.add(Box.createVerticalStrut(6));
+            panelLocalSettings.add(pFlowEngine);
             panelLocalSettings.add(createCompactField("<html>Flow WinSize:</html>", txtWinSize = new JTextField("5")));
+            JLabel lblScale = new JLabel("Flow Scale:"); lblScale.setFont(FONT_LABEL); lblScale.setAlignmentX(Component.LEFT_ALIGNMENT);
+            String[] scales = {"1 (Full)", "1/2", "1/4"};
+            cmbFlowScale = new JComboBox<>(scales); cmbFlowScale.setSelectedIndex(0); cmbFlowScale.setFont(FONT_INPUT); cmbFlowScale.setMaximumSize(new Dimension(100, 24)); cmbFlowScale.setAlignmentX(Component.LEFT_ALIGNMENT);
+            cmbFlowScale.setToolTipText("Compute the flow on a binned frame and upsample it; much faster on large frames");
+            JPanel pScale = new JPanel(); pScale.setLayout(new BoxLayout(pScale, BoxLayout.Y_AXIS)); pScale.setOpaque(false); pScale.setAlignmentX(Component.LEFT_ALIGNMENT); pScale.add(lblScale); pScale.add(cmbFlowScale); pScale.add(Box.createVerticalStrut(6));
+            panelLocalSettings.add(pScale);
+            JLabel lblInterp = new JLabel("Interpolation:"); lblInterp.setFont(FONT_LABEL); lblInterp.setAlignmentX(Component.LEFT_ALIGNMENT);
+            String[] interps = {"Cubic", "Linear"};
+            cmbInterp = new JComboBox<>(interps); cmbInterp.setSelectedIndex(0); cmbInterp.setFont(FONT_INPUT); cmbInterp.setMaximumSize(new Dimension(100, 24)); cmbInterp.setAlignmentX(Component.LEFT_ALIGNMENT);
+            cmbInterp.setToolTipText("Resampling of the corrected frames; Linear is faster, Cubic keeps more detail");
+            JPanel pInterp = new JPanel(); pInterp.setLayout(new BoxLayout(pInterp, BoxLayout.Y_AXIS)); pInterp.setOpaque(false); pInterp.setAlignmentX(Component.LEFT_ALIGNMENT); pInterp.add(lblInterp); pInterp.add(cmbInterp); pInterp.add(Box.createVerticalStrut(6));
+            panelLocalSettings.add(pInterp);
             panelLocalSettings.add(createCompactField("<html>Ref Depth (Frames):</html>", txtRefDepth = new JTextField("5")));
+            panelLocalSettings.add(createCompactField("<html>Ref Refresh (0=Fixed):</html>", txtRefRefresh = new JTextField("0")));
+            panelLocalSettings.add(createCompactField("<html>Tile Size (0=Off):</html>", txtTileSize = new JTextField("0")));
+            txtTileSize.setToolTipText("Solve the flow on overlapping tiles of about this size (px) in parallel; for very large frames");
+            txtRefRefresh.setToolTipText("Every N frames, blend the newly aligned frames into the super reference (rolling mean over ~Ref Depth frames)");
             
             panelLocalSettings.add(createCompactField("Pyramid Layers:", txtFlowLevels = new JTextField("3")));
             panelLocalSettings.add(createCompactField("Iterations:", txtFlowIters = new JTextField("3")));
@@ -208,12 +229,28 @@ public class FIA_Command implements Command {
             cmbPolyN = new JComboBox<>(polys); cmbPolyN.setSelectedIndex(0); cmbPolyN.setFont(FONT_INPUT); cmbPolyN.setMaximumSize(new Dimension(100, 24)); cmbPolyN.setAlignmentX(Component.LEFT_ALIGNMENT);
             JPanel pPoly = new JPanel(); pPoly.setLayout(new BoxLayout(pPoly, BoxLayout.Y_AXIS)); pPoly.setOpaque(false); pPoly.setAlignmentX(Component.LEFT_ALIGNMENT); pPoly.add(lblPoly); pPoly.add(cmbPolyN); pPoly.add(Box.createVerticalStrut(6));
             panelLocalSettings.add(pPoly);
+            chkWarmFlow = new JCheckBox("Warm Start (Temporal)"); chkWarmFlow.setFont(FONT_CHECKBOX); chkWarmFlow.setFocusPainted(false); chkWarmFlow.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkWarmFlow.setToolTipText("Seed each flow with the previous frame's; cold start when the residual jumps");
+            panelLocalSettings.add(chkWarmFlow);
             
             rightCol.add(panelLocalSettings);
 
             rightCol.add(Box.createVerticalStrut(5));
+            rightCol.add(createCompactField("Threads:", txtThreads = new JTextField(String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            rightCol.add(createCompactField("I/O Threads:", txtIoThreads = new JTextField("2")));
+            txtIoThreads.setToolTipText("Threads loading input frames ahead of the aligner and writing streamed output");
+            rightCol.add(createCompactField("<html>Keyframe Every (0=Off):</html>", txtKeyframe = new JTextField("0")));
+            txtKeyframe.setToolTipText("Estimate every Nth frame in full and interpolate the frames in between (high frame rates)");
+            rightCol.add(createCompactField("<html>Motion Thr (px):</html>", txtMotionThr = new JTextField("1.0")));
+            txtMotionThr.setToolTipText("Frames whose quick FFT shift leaves the interpolated path by more than this are estimated in full");
             chkLog = new JCheckBox("Verbose Log"); chkLog.setFont(FONT_CHECKBOX); chkLog.setFocusPainted(false); chkLog.setAlignmentX(Component.LEFT_ALIGNMENT); rightCol.add(chkLog);
             chkSaveMatrix = new JCheckBox("Save Matrix (.csv)"); chkSaveMatrix.setFont(FONT_CHECKBOX); chkSaveMatrix.setFocusPainted(false); chkSaveMatrix.setAlignmentX(Component.LEFT_ALIGNMENT); rightCol.add(chkSaveMatrix);
+            chkVirtual = new JCheckBox("Virtual Output (Low RAM)"); chkVirtual.setFont(FONT_CHECKBOX); chkVirtual.setFocusPainted(false); chkVirtual.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkVirtual.setToolTipText("Keep only the transforms; frames are warped on demand (global modes)");
+            rightCol.add(chkVirtual);
+            chkStream = new JCheckBox("Stream to File"); chkStream.setFont(FONT_CHECKBOX); chkStream.setFocusPainted(false); chkStream.setAlignmentX(Component.LEFT_ALIGNMENT);
+            chkStream.setToolTipText("Write aligned frames to a TIFF (or .raw) as they finish; they leave memory once written");
+            rightCol.add(chkStream);
             
             splitPanel.add(rightCol, BorderLayout.EAST);
             mainPanel.add(splitPanel); mainPanel.add(Box.createVerticalStrut(10));
@@ -233,6 +270,13 @@ public class FIA_Command implements Command {
 
         private JMenuBar createMenuBar() {
             JMenuBar menuBar = new JMenuBar();
+            JMenu menuFile = new JMenu("File");
+            JMenuItem itemMapped = new JMenuItem("Open Mapped Stack (TIFF/Raw)...");
+            itemMapped.setToolTipText("Open an uncompressed TIFF or raw file without loading it; frames are read on demand");
+            itemMapped.addActionListener(e -> openMappedStack());
+            menuFile.add(itemMapped);
+            menuBar.add(menuFile);
+
             JMenu menuHelp = new JMenu("Help");
             
             JMenuItem itemManual = new JMenuItem("User Manual");
@@ -252,32 +296,86 @@ public class FIA_Command implements Command {
             boolean isDense = btnDense.isSelected(); 
             boolean isLocal = isElastic || isDense;
             boolean isLegacy = cmbEngine.getSelectedItem().toString().contains("Legacy");
-
-            if (isLegacy && !isLocal) {
-                if (btnRigid.isSelected()) { btnTranslation.setSelected(true); btnRigid.setSelected(false); updateAllButtonStyles(); }
+            boolean isPhase = cmbEngine.getSelectedItem().toString().contains("Phase");
+
+            if (isPhase && !isLocal) {
+                if (btnRigid.isSelected() || btnAffine.isSelected() || btnHomography.isSelected()) { btnTranslation.setSelected(true); btnRigid.setSelected(false); btnAffine.setSelected(false); btnHomography.setSelected(false); updateAllButtonStyles(); }
+                btnRigid.setEnabled(false); btnRigid.setToolTipText("Phase Corr is translation only");
+                btnAffine.setEnabled(false); btnAffine.setToolTipText("Phase Corr is translation only");
+                btnHomography.setEnabled(false); btnHomography.setToolTipText("Phase Corr is translation only");
+            } else if (isLegacy && !isLocal) {
+                if (btnRigid.isSelected() || btnHomography.isSelected()) { btnTranslation.setSelected(true); btnRigid.setSelected(false); btnHomography.setSelected(false); updateAllButtonStyles(); }
                 btnRigid.setEnabled(false); btnRigid.setToolTipText("Not available in Legacy mode");
+                btnAffine.setEnabled(true); btnAffine.setToolTipText(null);
+                btnHomography.setEnabled(false); btnHomography.setToolTipText("Not available in Legacy mode");
             } else {
                 btnRigid.setEnabled(true); btnRigid.setToolTipText(null);
+                btnAffine.setEnabled(true); btnAffine.setToolTipText(null);
+                btnHomography.setEnabled(true); btnHomography.setToolTipText(null);
             }
             
+            chkVirtual.setEnabled(!isLocal);
+
             if (isLocal) {
                 panelGlobalSettings.setVisible(false);
                 panelLocalSettings.setVisible(true);
                 
+                boolean isFarneback = !isDense || cmbFlowEngine.getSelectedIndex() == 0;
+                cmbFlowEngine.setEnabled(isDense);
+                txtWinSize.setEnabled(isFarneback);
                 txtRefDepth.setEnabled(isDense);
-                txtFlowLevels.setEnabled(isDense);
-                txtFlowIters.setEnabled(isDense);
-                cmbPolyN.setEnabled(isDense);
+                txtRefRefresh.setEnabled(isDense);
+                txtTileSize.setEnabled(isDense);
+                txtFlowLevels.setEnabled(isDense && isFarneback);
+                txtFlowIters.setEnabled(isDense && isFarneback);
+                cmbPolyN.setEnabled(isDense && isFarneback);
+                chkWarmFlow.setEnabled(isDense && isFarneback);
             } else {
                 panelGlobalSettings.setVisible(true);
                 panelLocalSettings.setVisible(false);
                 
-                cmbPyramid.setEnabled(isLegacy);
+                cmbPyramid.setEnabled(isLegacy || (!isPhase && chkEccPyramid.isSelected()));
+                chkEccPyramid.setEnabled(!isLegacy && !isPhase);
                 txtAlpha.setEnabled(isLegacy);
+                txtMaxIter.setEnabled(!isPhase);
+                txtEpsilon.setEnabled(!isPhase);
+                chkCoarseInit.setEnabled(openCVLoaded && !isPhase);
+                chkWarmLegacy.setEnabled(isLegacy);
             }
             pack();
         }
 
+        /** Opens an uncompressed TIFF or raw file as a memory-mapped virtual stack (raw geometry via ImageJ's import dialog). */
+        private void openMappedStack() {
+            OpenDialog od = new OpenDialog("Open Mapped Stack (TIFF/Raw)");
+            if (od.getFileName() == null) return;
+            String path = od.getPath(); String name = od.getFileName();
+            try {
+                MappedStack stack;
+                if (name.toLowerCase().endsWith(".tif") || name.toLowerCase().endsWith(".tiff")) stack = MappedStack.openTiff(path);
+                else {
+                    FileInfo fi = new ImportDialog(name, od.getDirectory()).getFileInfo();
+                    if (fi == null) return;
+                    stack = new MappedStack(path, new FileInfo[]{fi});
+                }
+                ImagePlus imp = stack.toImagePlus(name);
+                // The file handle lives as long as the window
+                ImagePlus.addImageListener(new ImageListener() {
+                    public void imageOpened(ImagePlus i) {}
+                    public void imageUpdated(ImagePlus i) {}
+                    public void imageClosed(ImagePlus i) {
+                        if (i != imp) return;
+                        stack.close();
+                        ImagePlus.removeImageListener(this);
+                    }
+                });
+                imp.show();
+                IJ.log(String.format("FIA: Mapped %s (%d images, %.1f GB on disk). Use Virtual Output to keep memory low.", name, stack.getSize(), (double) stack.getSize() * stack.getWidth() * stack.getHeight() * stack.getBitDepth() / 8 / (1L << 30)));
+            } catch (IOException ex) {
+                IJ.error("FIA", "Can't map " + name + ":\n" + ex.getMessage());
+            }
+        }
+
         private void showHelp() { JOptionPane.showMessageDialog(this, FIAHelp.getManual(), "FIA Help", JOptionPane.INFORMATION_MESSAGE); }
         private JPanel createCompactField(String labelText, JTextField field) { JPanel row = new JPanel(); row.setLayout(new BoxLayout(row, BoxLayout.Y_AXIS)); row.setOpaque(false); row.setAlignmentX(Component.LEFT_ALIGNMENT); JLabel lbl = new JLabel(labelText); lbl.setFont(FONT_LABEL); lbl.setAlignmentX(Component.LEFT_ALIGNMENT); row.add(lbl); field.setFont(FONT_INPUT); field.setMaximumSize(new Dimension(70, 24)); field.setAlignmentX(Component.LEFT_ALIGNMENT); row.add(field); JPanel outer = new JPanel(); outer.setLayout(new BoxLayout(outer, BoxLayout.Y_AXIS)); outer.setOpaque(false); outer.setAlignmentX(Component.LEFT_ALIGNMENT); outer.add(row); outer.add(Box.createVerticalStrut(6)); return outer; }
         private JToggleButton createUnifiedButton(String text) { JToggleButton btn = new JToggleButton(text); btn.setFont(FONT_BTN_NORMAL); btn.setFocusPainted(false); btn.setFocusable(false); btn.setMargin(new Insets(4, 5, 4, 5)); btn.setMaximumSize(new Dimension(Short.MAX_VALUE, 28)); btn.setAlignmentX(Component.LEFT_ALIGNMENT); btn.setBackground(Color.WHITE); btn.setForeground(COLOR_TEXT_NORMAL); btn.setBorder(BorderFactory.createLineBorder(COLOR_BORDER_GRAY)); return btn; }
@@ -296,239 +394,108 @@ public class FIA_Command implements Command {
         private Border createRiaBorder(String title) { TitledBorder tb = BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), title); tb.setTitleFont(new Font("Arial", Font.BOLD, 12)); tb.setTitleColor(COLOR_THEME_BLUE); return new CompoundBorder(tb, new EmptyBorder(8, 8, 8, 8)); }
         
         private void selectMode(JToggleButton target) { 
-            btnTranslation.setSelected(false); btnRigid.setSelected(false); btnAffine.setSelected(false); btnElastic.setSelected(false); btnDense.setSelected(false);
+            btnTranslation.setSelected(false); btnRigid.setSelected(false); btnAffine.setSelected(false); btnHomography.setSelected(false); btnElastic.setSelected(false); btnDense.setSelected(false);
             target.setSelected(true); 
             updateAllButtonStyles(); 
             updateUIState(); 
         }
         
-        private void updateAllButtonStyles() { styleSingleBtn(btnTranslation); styleSingleBtn(btnRigid); styleSingleBtn(btnAffine); styleSingleBtn(btnElastic); styleSingleBtn(btnDense); }
+        private void updateAllButtonStyles() { styleSingleBtn(btnTranslation); styleSingleBtn(btnRigid); styleSingleBtn(btnAffine); styleSingleBtn(btnHomography); styleSingleBtn(btnElastic); styleSingleBtn(btnDense); }
         private void styleSingleBtn(JToggleButton btn) { if (btn.isSelected()) { btn.setForeground(COLOR_THEME_BLUE); btn.setBackground(Color.WHITE); btn.setFont(FONT_BTN_SELECTED); btn.setBorder(BorderFactory.createLineBorder(COLOR_THEME_BLUE, 1)); } else { btn.setForeground(COLOR_TEXT_NORMAL); btn.setBackground(Color.WHITE); btn.setFont(FONT_BTN_NORMAL); btn.setBorder(BorderFactory.createLineBorder(COLOR_BORDER_GRAY)); } }
 
         private void startAlignment(ActionEvent e) {
             ImagePlus imp = WindowManager.getCurrentImage();
             if (imp == null) { JOptionPane.showMessageDialog(this, "No image found."); return; }
-            if (!openCVLoaded && (cmbEngine.getSelectedItem().toString().contains("OpenCV") || btnDense.isSelected())) { 
-                IJ.error("OpenCV Error", "Legacy mode does not support Dense/Rigid."); return; 
+            if (!openCVLoaded && (cmbEngine.getSelectedItem().toString().contains("OpenCV") || btnDense.isSelected())) {
+                IJ.error("OpenCV Error", "Legacy mode does not support Dense/Rigid."); return;
+            }
+            if (imp.getBitDepth() == 24 && (!cmbEngine.getSelectedItem().toString().contains("Legacy") || btnElastic.isSelected() || btnDense.isSelected())) {
+                IJ.error("FIA", "RGB images need the Legacy engine in a global mode.\nSplit the channels (Image > Color > Split Channels) for OpenCV, Phase Corr, Elastic or Dense."); return;
             }
             btnRun.setEnabled(false); btnRun.setText("Aligning..."); statusLabel.setText("Initializing...");
             
-            String mode = "Rigid"; 
-            if (btnTranslation.isSelected()) mode = "Translation"; 
-            else if (btnAffine.isSelected()) mode = "Affine"; 
-            else if (btnElastic.isSelected()) mode = "Elastic";
-            else if (btnDense.isSelected()) mode = "Dense";
-
-            boolean isLegacy = cmbEngine.getSelectedItem().toString().contains("Legacy");
+            AlignParams p = new AlignParams();
+            if (btnTranslation.isSelected()) p.mode = "Translation"; 
+            else if (btnAffine.isSelected()) p.mode = "Affine"; 
+            else if (btnHomography.isSelected()) p.mode = "Homography";
+            else if (btnElastic.isSelected()) p.mode = "Elastic";
+            else if (btnDense.isSelected()) p.mode = "Dense";
+
+            p.legacy = cmbEngine.getSelectedItem().toString().contains("Legacy");
+            p.phase = cmbEngine.getSelectedItem().toString().contains("Phase");
+            p.coarseInit = openCVLoaded && !p.phase && chkCoarseInit.isSelected();
+            p.eccPyramid = chkEccPyramid.isEnabled() && chkEccPyramid.isSelected();
+            if (chkRoi.isSelected() && panelGlobalSettings.isVisible()) {
+                Roi r = imp.getRoi();
+                if (r != null && r.isArea()) p.roi = (Roi) r.clone();
+                else IJ.log("FIA: No area ROI on the image, estimating on the full frame.");
+            }
             
-            int maxIter = 200; int eps = 7; int winSize = 5; double alpha = 0.90; int pyr = 1; 
-            int refDepth = 5; int flowLevels = 3; int flowIters = 3; int polyN = 5;
+            int[] disPresets = {-1, DISOpticalFlow.PRESET_ULTRAFAST, DISOpticalFlow.PRESET_FAST, DISOpticalFlow.PRESET_MEDIUM};
+            p.disPreset = btnDense.isSelected() ? disPresets[cmbFlowEngine.getSelectedIndex()] : -1;
+            p.interp = cmbInterp.getSelectedIndex() == 0 ? Imgproc.INTER_CUBIC : Imgproc.INTER_LINEAR;
 
             try { 
+                p.threads = Math.max(1, Integer.parseInt(txtThreads.getText()));
+                p.ioThreads = Math.max(1, Integer.parseInt(txtIoThreads.getText()));
+                p.keyframeInterval = Math.max(0, Integer.parseInt(txtKeyframe.getText()));
+                p.motionThreshold = Math.max(0, Double.parseDouble(txtMotionThr.getText()));
                 if(panelGlobalSettings.isVisible()) {
-                    maxIter = Integer.parseInt(txtMaxIter.getText()); 
-                    eps = Integer.parseInt(txtEpsilon.getText()); 
-                    alpha = Double.parseDouble(txtAlpha.getText()); 
-                    pyr = Integer.parseInt(cmbPyramid.getSelectedItem().toString());
+                    p.maxIter = Integer.parseInt(txtMaxIter.getText()); 
+                    p.eps = Integer.parseInt(txtEpsilon.getText()); 
+                    p.alpha = Double.parseDouble(txtAlpha.getText()); 
+                    p.pyramid = Integer.parseInt(cmbPyramid.getSelectedItem().toString());
                 }
                 if(panelLocalSettings.isVisible()) {
-                    winSize = Integer.parseInt(txtWinSize.getText());
+                    p.winSize = Integer.parseInt(txtWinSize.getText());
+                    p.flowScale = 1 << cmbFlowScale.getSelectedIndex();
                     if (btnDense.isSelected()) {
-                        refDepth = Integer.parseInt(txtRefDepth.getText());
-                        flowLevels = Integer.parseInt(txtFlowLevels.getText());
-                        flowIters = Integer.parseInt(txtFlowIters.getText());
-                        polyN = cmbPolyN.getSelectedIndex() == 0 ? 5 : 7;
+                        p.refDepth = Integer.parseInt(txtRefDepth.getText());
+                        p.refRefresh = Math.max(0, Integer.parseInt(txtRefRefresh.getText()));
+                        p.tileSize = Math.max(0, Integer.parseInt(txtTileSize.getText()));
+                        p.flowLevels = Integer.parseInt(txtFlowLevels.getText());
+                        p.flowIters = Integer.parseInt(txtFlowIters.getText());
+                        p.polyN = cmbPolyN.getSelectedIndex() == 0 ? 5 : 7;
                     }
                 }
             } catch (NumberFormatException ex) {}
+            p.warmStart = p.isGlobal() ? chkWarmLegacy.isSelected() : chkWarmFlow.isSelected();
+            p.verbose = chkLog.isSelected(); p.saveMatrix = chkSaveMatrix.isSelected(); p.virtualOutput = chkVirtual.isSelected() && chkVirtual.isEnabled();
             
-            int refT = (imp.getNFrames() > 1) ? imp.getFrame() : imp.getCurrentSlice();
-            IJ.log("FIA: Starting " + mode + " Alignment. Ref=" + refT);
-            
-            new AlignmentWorker(imp, mode, isLegacy, maxIter, eps, winSize, alpha, pyr, refT, refDepth, flowLevels, flowIters, polyN, chkLog.isSelected(), chkSaveMatrix.isSelected()).execute();
-        }
-
-        class AlignmentWorker extends SwingWorker<Void, Integer> {
-            ImagePlus srcImp, resImp; String mode; boolean isLegacy; 
-            int maxIter, eps, winSize, pyr, refT;
-            int refDepth, flowLevels, flowIters, polyN; 
-            double alpha; boolean verbose, saveMatrix;
-            List<String> matrixLog = new ArrayList<>();
-            Mat gridX, gridY, mapX, mapY;
-            
-            public AlignmentWorker(ImagePlus imp, String mode, boolean isLegacy, int maxIter, int eps, int winSize, double alpha, int pyr, int refT, 
-                                   int refDepth, int flowLevels, int flowIters, int polyN, 
-                                   boolean verbose, boolean saveMatrix) {
-                this.srcImp = imp; this.mode = mode; this.isLegacy = isLegacy;
-                this.maxIter = maxIter; this.eps = eps; this.winSize = winSize; this.alpha = alpha; this.pyr = pyr; this.refT = refT;
-                this.refDepth = refDepth; this.flowLevels = flowLevels; this.flowIters = flowIters; this.polyN = polyN;
-                this.verbose = verbose; this.saveMatrix = saveMatrix;
+            if (chkStream.isSelected()) {
+                if (imp.getBitDepth() == 24) { IJ.error("FIA", "Stream to File supports 8, 16 and 32-bit images."); btnRun.setEnabled(true); btnRun.setText("Run Alignment"); statusLabel.setText("Ready"); return; }
+                SaveDialog sd = new SaveDialog("Stream Aligned Output", "FIA-" + imp.getShortTitle(), ".tif");
+                if (sd.getFileName() == null) { btnRun.setEnabled(true); btnRun.setText("Run Alignment"); statusLabel.setText("Ready"); return; }
+                p.streamPath = sd.getDirectory() + sd.getFileName();
             }
-            
-            @Override protected Void doInBackground() throws Exception {
-                publish(0);
-                if (saveMatrix && !mode.equals("Elastic") && !mode.equals("Dense")) matrixLog.add("Frame,m00,m01,m02,m10,m11,m12");
-
-                ImageStack srcStack = srcImp.getStack();
-                ImageStack resStack = srcStack.duplicate(); 
-                resImp = new ImagePlus("FIA-" + srcImp.getTitle(), resStack);
-                resImp.setCalibration(srcImp.getCalibration().copy());
-                resImp.setDimensions(srcImp.getNChannels(), srcImp.getNSlices(), srcImp.getNFrames());
-
-                int frames = srcImp.getNFrames(); int slices = srcImp.getNSlices(); int channels = srcImp.getNChannels();
-                int nTimepoints = frames > 1 ? frames : slices;
-                
-                if (mode.equals("Elastic") || mode.equals("Dense")) initMeshGrid(srcImp.getWidth(), srcImp.getHeight());
 
-                int refChannel = 1;
-                if (channels > 1) { 
-                    double maxMean = -1; for (int c=1; c<=channels; c++) { int idx = resImp.getStackIndex(c, 1, 1); double mean = resImp.getStack().getProcessor(idx).getStats().mean; if (mean > maxMean) { maxMean = mean; refChannel = c; } } 
-                }
-
-                int idxRef = resImp.getStackIndex(refChannel, 1, refT);
-                ImageProcessor ipRef = resImp.getStack().getProcessor(idxRef);
-                ImageProcessor ipRefFloat = ipRef.convertToFloat();
-
-                Mat tpl = null; Mat warp = null; TermCriteria term = null;
-                if (!isLegacy && !mode.equals("Elastic") && !mode.equals("Dense")) {
-                    Mat tplRaw = imagePlusToMat(ipRef); tpl = new Mat(); tplRaw.convertTo(tpl, CvType.CV_32F); Core.normalize(tpl, tpl, 0, 1, Core.NORM_MINMAX);
-                    warp = Mat.eye(2, 3, CvType.CV_32F); term = new TermCriteria(TermCriteria.COUNT+TermCriteria.EPS, maxIter, Math.pow(10, -eps));
-                }
-
-                Mat denseSuperRef = null;
-                if (mode.equals("Dense")) {
-                    if(verbose) IJ.log("Dense Mode: Building Super Reference from " + refDepth + " frames...");
-                    denseSuperRef = createSuperReference(resImp, refChannel, refT, refDepth, nTimepoints);
-                }
-
-                for (int t=1; t<=nTimepoints; t++) {
-                    if (isCancelled()) break;
-                    double[][] legacyWp = null;
-
-                    if (t == refT && !mode.equals("Dense")) {
-                        if (saveMatrix) { 
-                             if (isLegacy) logLegacyMatrix(t, new double[][]{{0},{0}}, LegacyAligner.TRANSLATION); 
-                             else logMatrix(t, Mat.eye(2,3,CvType.CV_32F));
-                        }
-                        publish((int)((double)t/nTimepoints*100));
-                        continue; 
-                    }
-
-                    if (true) { 
-                         int idx = resImp.getStackIndex(refChannel, 1, t);
-                         ImageProcessor ipCurr = resImp.getStack().getProcessor(idx);
-                         
-                         if (mode.equals("Dense")) {
-                             calculateDenseFlow(denseSuperRef, ipCurr, t);
-                         } 
-                         else if (mode.equals("Elastic")) {
-                             calculateElasticFlow(ipRef, ipCurr, t);
-                         } 
-                         else {
-                             if (isLegacy) {
-                                 try {
-                                     int type = mode.equals("Translation") ? LegacyAligner.TRANSLATION : LegacyAligner.AFFINE;
-                                     legacyWp = LegacyAligner.estimate(ipCurr, ipRefFloat, type, pyr, maxIter, Math.pow(10, -eps));
-                                     if (saveMatrix) logLegacyMatrix(t, legacyWp, type);
-                                 } catch (Exception ex) { ex.printStackTrace(); }
-                             } else {
-                                 Mat currRaw = imagePlusToMat(ipCurr); Mat curr = new Mat(); currRaw.convertTo(curr, CvType.CV_32F); Core.normalize(curr, curr, 0, 1, Core.NORM_MINMAX);
-                                 try { Video.findTransformECC(tpl, curr, warp, Video.MOTION_AFFINE, term, new Mat(), 5); } catch(Exception e){}
-                                 if (saveMatrix) logMatrix(t, warp);
-                             }
-                         }
-                    }
-                    
-                    for (int c=1; c<=channels; c++) {
-                        int idx = resImp.getStackIndex(c, 1, t);
-                        ImageProcessor ip = resImp.getStack().getProcessor(idx); 
-                        
-                        if (mode.equals("Elastic") || mode.equals("Dense")) {
-                             Mat src = imagePlusToMat(ip); Mat dst = new Mat();
-                             if (mapX != null) { 
-                                 Imgproc.remap(src, dst, mapX, mapY, Imgproc.INTER_CUBIC); 
-                                 updateImageProcessor(ip, dst); 
-                             }
-                        } else {
-                            if (isLegacy && legacyWp != null) {
-                                int type = mode.equals("Translation") ? LegacyAligner.TRANSLATION : LegacyAligner.AFFINE;
-                                ImageProcessor alignedIp = LegacyAligner.warp(ip, legacyWp, type);
-                                resImp.getStack().setPixels(alignedIp.getPixels(), idx); 
-                            } else if (!isLegacy && warp != null) {
-                                Mat src = imagePlusToMat(ip); Mat dst = new Mat();
-                                Imgproc.warpAffine(src, dst, warp, src.size(), Imgproc.INTER_LINEAR + Imgproc.WARP_INVERSE_MAP);
-                                updateImageProcessor(ip, dst);
-                            }
-                        }
-                    }
-                    publish((int)((double)t/nTimepoints*100));
-                }
-                return null;
-            }
-            
-            private Mat createSuperReference(ImagePlus imp, int channel, int startFrame, int depth, int totalFrames) {
-                int w = imp.getWidth(); int h = imp.getHeight();
-                FloatProcessor avg = new FloatProcessor(w, h);
-                float[] avgPix = (float[]) avg.getPixels();
-                int count = 0;
-                for(int i = 0; i < depth; i++) {
-                    int t = startFrame + i;
-                    if (t > totalFrames) break;
-                    int idx = imp.getStackIndex(channel, 1, t);
-                    ImageProcessor ip = imp.getStack().getProcessor(idx).convertToFloat();
-                    float[] pix = (float[]) ip.getPixels();
-                    for(int p=0; p<avgPix.length; p++) avgPix[p] += pix[p];
-                    count++;
-                }
-                if (count > 0) { for(int p=0; p<avgPix.length; p++) avgPix[p] /= count; }
-                return preprocessForFlow(avg);
-            }
+            p.refT = (imp.getNFrames() > 1) ? imp.getFrame() : imp.getCurrentSlice();
+            IJ.log("FIA: Starting " + p.mode + " Alignment. Ref=" + p.refT + ", Threads=" + p.threads);
             
-            private Mat preprocessForFlow(ImageProcessor ip) {
-                Mat m8 = new Mat();
-                Mat mOriginal = imagePlusToMat(ip);
-                Core.normalize(mOriginal, m8, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
-                Imgproc.GaussianBlur(m8, m8, new Size(3, 3), 0);
-                CLAHE clahe = Imgproc.createCLAHE(4.0, new Size(8, 8));
-                clahe.apply(m8, m8);
-                return m8;
-            }
+            new AlignmentWorker(imp, p).execute();
+        }
 
-            private void calculateDenseFlow(Mat superRef, ImageProcessor ipCurr, int t) {
-                Mat currPre = preprocessForFlow(ipCurr);
-                Mat flow = new Mat();
-                double polySigma = (polyN == 7) ? 1.5 : 1.1;
-                Video.calcOpticalFlowFarneback(superRef, currPre, flow, 0.5, flowLevels, winSize, flowIters, polyN, polySigma, 0);
-                
-                List<Mat> flowCh = new ArrayList<>(); Core.split(flow, flowCh); 
-                Core.add(gridX, flowCh.get(0), mapX); 
-                Core.add(gridY, flowCh.get(1), mapY);
-                if (verbose && t % 10 == 0) IJ.log(String.format("Dense Flow F%d: win=%d, lev=%d, iter=%d", t, winSize, flowLevels, flowIters));
-            }
+        class AlignmentWorker extends SwingWorker<AlignResult, Integer> {
+            final ImagePlus srcImp; final AlignParams params;
+
+            AlignmentWorker(ImagePlus imp, AlignParams params) { this.srcImp = imp; this.params = params; }
 
-            private void calculateElasticFlow(ImageProcessor ipRef, ImageProcessor ipCurr, int t) {
-                 Mat tpl8u = new Mat(); Mat curr8u = new Mat();
-                 Mat mRef = imagePlusToMat(ipRef); mRef.convertTo(tpl8u, CvType.CV_8UC1);
-                 Mat mCurr = imagePlusToMat(ipCurr); mCurr.convertTo(curr8u, CvType.CV_8UC1);
-                 Mat flow = new Mat(); 
-                 Video.calcOpticalFlowFarneback(tpl8u, curr8u, flow, 0.5, 3, winSize, 3, 5, 1.1, 0);
-                 List<Mat> flowCh = new ArrayList<>(); Core.split(flow, flowCh); 
-                 Core.add(gridX, flowCh.get(0), mapX); Core.add(gridY, flowCh.get(1), mapY);
+            @Override protected AlignResult doInBackground() throws Exception {
+                return new Aligner(params).align(srcImp, new Aligner.Listener() {
+                    @Override public void progress(int percent) { publish(percent); }
+                    @Override public boolean cancelled() { return isCancelled(); }
+                });
             }
-            
-            private void initMeshGrid(int w, int h) { gridX = new Mat(h, w, CvType.CV_32F); gridY = new Mat(h, w, CvType.CV_32F); mapX = new Mat(h, w, CvType.CV_32F); mapY = new Mat(h, w, CvType.CV_32F); float[] rowX = new float[w]; for(int i=0; i<w; i++) rowX[i] = i; for(int j=0; j<h; j++) gridX.put(j, 0, rowX); float[] colY = new float[w]; for(int j=0; j<h; j++) { for(int i=0; i<w; i++) colY[i] = j; gridY.put(j, 0, colY); } }
-            private void logMatrix(int frame, Mat m) { float[] data = new float[6]; m.get(0, 0, data); String line = String.format("%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", frame, data[0], data[1], data[2], data[3], data[4], data[5]); matrixLog.add(line); }
-            private void logLegacyMatrix(int frame, double[][] wp, int type) { if (type == LegacyAligner.TRANSLATION) { matrixLog.add(String.format("%d,1.0,0.0,%.6f,0.0,1.0,%.6f", frame, wp[0][0], wp[1][0])); } else { matrixLog.add(String.format("%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", frame, wp[0][0]+1.0, wp[0][1], wp[0][2], wp[1][0], wp[1][1]+1.0, wp[1][2])); } }
             @Override protected void process(List<Integer> chunks) { int val = chunks.get(chunks.size()-1); progressBar.setValue(val); statusLabel.setText("Processing: " + val + "%"); }
             @Override protected void done() { 
                 btnRun.setEnabled(true); btnRun.setText("Run Alignment"); statusLabel.setText("Done"); 
+                AlignResult result = null;
+                try { result = get(); } catch (Exception e) { Throwable cause = e.getCause() != null ? e.getCause() : e; IJ.log("FIA: Alignment failed: " + cause); statusLabel.setText("Failed"); }
+                ImagePlus resImp = result != null ? result.getImage() : null;
                 try { if (resImp != null) { resImp.setDimensions(srcImp.getNChannels(), srcImp.getNSlices(), srcImp.getNFrames()); resImp.setOpenAsHyperStack(true); if (srcImp.isComposite() || srcImp.getNChannels() > 1) { CompositeImage outComp = new CompositeImage(resImp, ((CompositeImage)srcImp).getMode()); for (int c = 1; c <= srcImp.getNChannels(); c++) { LUT lut = ((CompositeImage)srcImp).getChannelLut(c); outComp.setChannelLut(lut, c); outComp.setDisplayRange(lut.min, lut.max); outComp.setPosition(c, 1, 1); } outComp.setPosition(1, 1, 1); outComp.show(); } else { resImp.setDisplayRange(srcImp.getDisplayRangeMin(), srcImp.getDisplayRangeMax()); resImp.show(); } } } catch (Exception e) {}
-                IJ.showStatus("FIA: Finished"); if (saveMatrix && !matrixLog.isEmpty()) saveMatrixFile(); 
+                IJ.showStatus("FIA: Finished"); if (result != null && !result.getMatrix().isEmpty()) saveMatrixFile(result.getMatrix()); 
             }
-            private void saveMatrixFile() { SaveDialog sd = new SaveDialog("Save Matrix", "FIA_Matrix", ".csv"); if (sd.getDirectory() != null) { try (BufferedWriter w = new BufferedWriter(new FileWriter(sd.getDirectory() + sd.getFileName()))) { for (String l : matrixLog) { w.write(l); w.newLine(); } } catch (Exception e) {} } }
+            private void saveMatrixFile(List<String> matrixLog) { SaveDialog sd = new SaveDialog("Save Matrix", "FIA_Matrix", ".csv"); if (sd.getDirectory() != null) { try (BufferedWriter w = new BufferedWriter(new FileWriter(sd.getDirectory() + sd.getFileName()))) { for (String l : matrixLog) { w.write(l); w.newLine(); } } catch (Exception e) {} } }
         }
-        
-        private Mat imagePlusToMat(ImageProcessor ip) { int w = ip.getWidth(); int h = ip.getHeight(); if (ip instanceof ByteProcessor) { Mat m = new Mat(h, w, CvType.CV_8UC1); m.put(0,0,(byte[])ip.getPixels()); return m; } else if (ip instanceof ShortProcessor) { Mat m = new Mat(h, w, CvType.CV_16UC1); m.put(0,0,(short[])ip.getPixels()); return m; } else if (ip instanceof FloatProcessor) { Mat m = new Mat(h, w, CvType.CV_32FC1); m.put(0,0,(float[])ip.getPixels()); return m; } return null; }
-        private void updateImageProcessor(ImageProcessor ip, Mat m) { if (ip instanceof ByteProcessor) { if(m.type()!=CvType.CV_8UC1) m.convertTo(m, CvType.CV_8UC1); m.get(0,0,(byte[])ip.getPixels()); } else if (ip instanceof ShortProcessor) { if(m.type()!=CvType.CV_16UC1) m.convertTo(m, CvType.CV_16UC1); m.get(0,0,(short[])ip.getPixels()); } else if (ip instanceof FloatProcessor) { if(m.type()!=CvType.CV_32FC1) m.convertTo(m, CvType.CV_32FC1); m.get(0,0,(float[])ip.getPixels()); } }
     }
 }
\ No newline at end of file
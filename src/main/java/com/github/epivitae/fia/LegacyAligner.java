@@ -7,6 +7,9 @@ import ij.process.ColorProcessor;
 import ij.process.ByteProcessor;
 import ij.process.ShortProcessor;
 
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
 /**
  * Encapsulation of the original Image Stabilizer algorithm by Kang Li.
  * Source: Image_Stabilizer.java (2008-2009)
@@ -17,32 +20,226 @@ public class LegacyAligner {
     public static final int TRANSLATION = 0;
     public static final int AFFINE = 1;
 
+    // Seeded estimates: stop once an update moves no frame corner by more than SEED_STEP px; a solution further than
+    // SEED_RANGE px from the seed is redone over the pyramid, as the seed was too far off for full resolution alone
+    static final double SEED_STEP = 0.01, SEED_RANGE = 2.0;
+
+    // SIMD kernels (Java 17+ with the Vector API module), or null for the scalar loops below
+    private static final PixelKernels SIMD = VectorSupport.kernels();
+
     /**
      * Calculate transformation matrix
      */
     public static double[][] estimate(ImageProcessor ip, ImageProcessor ipRef, int transformType, 
                                       int pyramidLevel, int maxIter, double tol) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
+        return estimate(ip, prepareReference(ipRef, transformType, pyramidLevel), maxIter, tol);
+    }
+
+    /**
+     * Calculate transformation matrix against a precomputed reference (see {@link #prepareReference}).
+     */
+    public static double[][] estimate(ImageProcessor ip, Reference ref, int maxIter, double tol) {
+        return estimate(ip, ref, maxIter, tol, null);
+    }
+
+    /**
+     * Calculate transformation matrix starting from an initial transform (e.g. the previous frame's),
+     * so smooth drift converges in a few iterations. initialWp is not modified; null starts from the identity.
+     */
+    public static double[][] estimate(ImageProcessor ip, Reference ref, int maxIter, double tol, double[][] initialWp) {
+        double[][] wp = (ref.transformType == TRANSLATION) ? new double[2][1] : new double[2][3];
+        if (initialWp != null) for (int i=0; i<2; i++) System.arraycopy(initialWp[i], 0, wp[i], 0, wp[i].length);
+        estimate(ip, ref, maxIter, tol, new Workspace(), wp);
+        return wp;
+    }
+
+    /**
+     * Allocation-free variant: all scratch buffers come from the (per-thread) workspace.
+     * wp ([2][1] for TRANSLATION, [2][3] for AFFINE) holds the initial transform at full
+     * resolution on entry (all zeros = identity) and the estimate on return.
+     * @return iterations used, summed over the pyramid levels
+     */
+    public static int estimate(ImageProcessor ip, Reference ref, int maxIter, double tol, Workspace ws, double[][] wp) {
+        return estimate(ip, ref, maxIter, tol, ws, wp, false);
+    }
 
-        ImageProcessor ipFloat = ip.convertToFloat();
+    /**
+     * As above; seeded says wp is already close (e.g. extrapolated from the previous frames). A seeded estimate skips
+     * the coarse levels and also stops once an update moves the frame by less than SEED_STEP px. If that does not
+     * converge, or strays more than SEED_RANGE px from the seed, the frame is estimated over the pyramid as unseeded.
+     * @return iterations used, summed over the pyramid levels (and the seeded attempt)
+     */
+    public static int estimate(ImageProcessor ip, Reference ref, int maxIter, double tol, Workspace ws, double[][] wp, boolean seeded) {
+        ws.ensure(ref.width, ref.height);
+        ImageProcessor[] ipPyramid = ws.pyramid;
+        buildPyramid(toFloat(ip, ws.frame, ws), ipPyramid, ref.width, ref.height, ref.pyramidLevel);
+        boolean translation = ref.transformType == TRANSLATION;
+
+        int iterations = 0;
+        if (seeded) {
+            double[][] seed = translation ? ws.seedT : ws.seedA;
+            for (int i=0; i<2; i++) System.arraycopy(wp[i], 0, seed[i], 0, seed[i].length);
+            ImageProcessor g1 = Workspace.get(ws.grad, 0, ipPyramid[0].getWidth(), ipPyramid[0].getHeight());
+            gradient(g1, ipPyramid[0]);
+            iterations = translation ? estimateTranslationCore(wp, g1, ref.levels[0], maxIter, tol, SEED_STEP, ws)
+                                     : estimateAffineCore(wp, g1, ref.levels[0], maxIter, tol, SEED_STEP, ws);
+            if (iterations < maxIter && cornerShift(wp, seed, ref.width, ref.height) <= SEED_RANGE) return iterations;
+            for (int i=0; i<2; i++) System.arraycopy(seed[i], 0, wp[i], 0, seed[i].length);
+        }
+
+        // Bring the initial translation down to the coarsest level; estimatePyramid doubles it per level
+        int top = 0;
+        for (int i = ref.pyramidLevel; i >= 1 && top == 0; i--) if (ipPyramid[i] != null && ref.levels[i] != null) top = i;
+        int t = translation ? 0 : 2;
+        wp[0][t] /= (1 << top); wp[1][t] /= (1 << top);
+
+        return iterations + estimatePyramid(wp, ipPyramid, ref, maxIter, tol, ws);
+    }
+
+    /** Largest distance between where wp and seed put a corner of a width x height frame (wp layout as in estimate()). */
+    private static double cornerShift(double[][] wp, double[][] seed, int width, int height) {
+        if (wp[0].length == 1) return Math.hypot(wp[0][0] - seed[0][0], wp[1][0] - seed[1][0]);
+        return cornerShift(wp[0][0] - seed[0][0], wp[1][0] - seed[1][0], wp[0][1] - seed[0][1], wp[1][1] - seed[1][1], wp[0][2] - seed[0][2], wp[1][2] - seed[1][2], width, height);
+    }
+
+    /** Largest displacement x -> (a*x + c*y + e, b*x + d*y + f) of a corner of a width x height frame. */
+    private static double cornerShift(double a, double b, double c, double d, double e, double f, int width, int height) {
+        double max = 0;
+        for (int y=0; y<height; y+=Math.max(1, height - 1)) for (int x=0; x<width; x+=Math.max(1, width - 1)) {
+            max = Math.max(max, Math.hypot(a * x + c * y + e, b * x + d * y + f));
+        }
+        return max;
+    }
+
+    /**
+     * Precompute everything estimate() derives from the reference frame: its pyramid,
+     * the gradient image, steepest-descent images and inverted Hessian per level.
+     * The result is immutable and can be shared by all frames (and threads) of a run.
+     */
+    public static Reference prepareReference(ImageProcessor ipRef, int transformType, int pyramidLevel) {
+        int width = ipRef.getWidth();
+        int height = ipRef.getHeight();
         ImageProcessor ipFloatRef = (ipRef instanceof FloatProcessor) ? ipRef : ipRef.convertToFloat();
 
-        ImageProcessor[] ipPyramid = new ImageProcessor[5];
         ImageProcessor[] ipRefPyramid = new ImageProcessor[5];
-        
-        buildPyramid(ipFloat, ipPyramid, width, height, pyramidLevel);
         buildPyramid(ipFloatRef, ipRefPyramid, width, height, pyramidLevel);
 
-        double[][] wp;
-        if (transformType == TRANSLATION) {
-            wp = new double[][]{{0.0}, {0.0}}; 
-            wp = estimateTranslation(wp, ipPyramid, ipRefPyramid, maxIter, tol, pyramidLevel);
-        } else {
-            wp = new double[][]{{0.0, 0.0, 0.0}, {0.0, 0.0, 0.0}}; 
-            wp = estimateAffine(wp, ipPyramid, ipRefPyramid, maxIter, tol, pyramidLevel);
+        Level[] levels = new Level[5];
+        for (int i = 0; i <= pyramidLevel && i < levels.length; i++) {
+            if (ipRefPyramid[i] != null) levels[i] = new Level(ipRefPyramid[i], transformType);
+        }
+        return new Reference(transformType, pyramidLevel, width, height, levels);
+    }
+
+    /**
+     * Reference frame data reused across every estimate() call of a run.
+     */
+    public static final class Reference {
+        final int transformType;
+        final int pyramidLevel;
+        final int width, height;
+        final Level[] levels;
+
+        private Reference(int transformType, int pyramidLevel, int width, int height, Level[] levels) {
+            this.transformType = transformType;
+            this.pyramidLevel = pyramidLevel;
+            this.width = width;
+            this.height = height;
+            this.levels = levels;
+        }
+
+        public int getTransformType() { return transformType; }
+    }
+
+    /** One pyramid level of a {@link Reference}: gradient image, steepest-descent images and H^-1. */
+    static final class Level {
+        final ImageProcessor gradient;
+        final float[][] sd;
+        final double[][] hInv;
+
+        Level(ImageProcessor ipRefLevel, int transformType) {
+            gradient = new FloatProcessor(ipRefLevel.getWidth(), ipRefLevel.getHeight());
+            gradient(gradient, ipRefLevel);
+            if (transformType == TRANSLATION) {
+                float[] dxRef = dx(gradient);
+                float[] dyRef = dy(gradient);
+                sd = new float[][]{dxRef, dyRef};
+                double[][] h = new double[2][2];
+                h[0][0] = dotSum(dxRef, dxRef); h[1][0] = dotSum(dxRef, dyRef);
+                h[0][1] = dotSum(dyRef, dxRef); h[1][1] = dotSum(dyRef, dyRef);
+                hInv = invert(h);
+            } else {
+                int width = gradient.getWidth();
+                int height = gradient.getHeight();
+                float[] jx = new float[width * height];
+                float[] jy = new float[width * height];
+                for (int y = 0; y < height; ++y) {
+                    for (int x = 0; x < width; ++x) {
+                        jx[y * width + x] = (float)x;
+                        jy[y * width + x] = (float)y;
+                    }
+                }
+                sd = new float[6][];
+                sd[4] = dx(gradient);
+                sd[5] = dy(gradient);
+                sd[0] = dot(sd[4], jx);
+                sd[1] = dot(sd[5], jx);
+                sd[2] = dot(sd[4], jy);
+                sd[3] = dot(sd[5], jy);
+                double[][] h = new double[6][6];
+                for (int y = 0; y < 6; ++y)
+                    for (int x = 0; x < 6; ++x) h[y][x] = dotSum(sd[x], sd[y]);
+                hInv = invert(h);
+            }
+        }
+    }
+
+    /**
+     * Reusable scratch buffers for estimate() and warp(). Not thread-safe: keep one per thread.
+     * Once sized to the frame, steady-state calls allocate nothing on the Java heap. The estimate buffers follow the
+     * estimated size and the warp scratch the warped frame, so estimating in an ROI and warping the full frame with
+     * the same workspace keeps both.
+     */
+    public static final class Workspace {
+        private int width = -1, height = -1;
+        final FloatProcessor[] frame = new FloatProcessor[1];
+        final FloatProcessor[] pyramid = new FloatProcessor[5];
+        final FloatProcessor[] grad = new FloatProcessor[5];
+        private Object warpScratch;
+
+        final double[] dpT = new double[2], dpTOut = new double[2];
+        final double[] dpA = new double[6], dpAOut = new double[6];
+        final double[][] bestWpT = new double[2][1], bestWpA = new double[2][3];
+        final double[][] seedT = new double[2][1], seedA = new double[2][3];
+        final double[][] d = new double[3][3], w = new double[3][3], wOut = new double[3][3];
+        final double[][] dInv = new double[3][3], invB = new double[3][3];
+        final int[] invIndex = new int[3];
+        final double[] invC = new double[3];
+
+        /** Drops the estimate buffers when the estimated size changes (the warp scratch is sized by scratchLike()). */
+        void ensure(int width, int height) {
+            if (width == this.width && height == this.height) return;
+            this.width = width; this.height = height;
+            frame[0] = null;
+            Arrays.fill(pyramid, null);
+            Arrays.fill(grad, null);
+        }
+
+        /** Scratch pixel array of the same type and length as pixels. */
+        Object scratchLike(Object pixels) {
+            int n = Array.getLength(pixels);
+            if (warpScratch == null || warpScratch.getClass() != pixels.getClass() || Array.getLength(warpScratch) != n) {
+                warpScratch = Array.newInstance(pixels.getClass().getComponentType(), n);
+            }
+            return warpScratch;
+        }
+
+        /** Returns slot i of the pool, (re)allocated only if missing or of a different size. */
+        static FloatProcessor get(FloatProcessor[] pool, int i, int w, int h) {
+            FloatProcessor fp = pool[i];
+            if (fp == null || fp.getWidth() != w || fp.getHeight() != h) pool[i] = fp = new FloatProcessor(w, h);
+            return fp;
         }
-        return wp;
     }
 
     /**
@@ -51,11 +248,58 @@ public class LegacyAligner {
     public static ImageProcessor warp(ImageProcessor ip, double[][] wp, int transformType) {
         int width = ip.getWidth();
         int height = ip.getHeight();
-        
-        // [DEBUG] Log the matrix application to confirm it's running
-        if (wp != null && transformType == TRANSLATION) {
-            // IJ.log(String.format("[DEBUG] Warping with dx=%.2f, dy=%.2f", wp[0][0], wp[1][0]));
+        if (ip.getCalibrationTable() != null) return warpInterpolated(ip, wp, transformType);
+
+        ImageProcessor ipOut;
+        if (ip instanceof ColorProcessor) ipOut = new ColorProcessor(width, height);
+        else if (ip instanceof ByteProcessor) ipOut = new ByteProcessor(width, height);
+        else if (ip instanceof ShortProcessor) ipOut = new ShortProcessor(width, height);
+        else ipOut = new FloatProcessor(width, height);
+        warp(ip, wp, transformType, ipOut.getPixels());
+        ipOut.resetMinAndMax();
+        return ipOut;
+    }
+
+    /**
+     * Direct warp engine: resamples ip's pixels (8/16/32-bit or RGB) by wp into outPixels, a
+     * caller-supplied array of the same type and size. Bilinear interpolation is inlined per type
+     * and source coordinates are evaluated per pixel from the row terms, so they round exactly as
+     * the original; no intermediate float copy or output processor is created. Calibration tables are ignored (raw pixel values).
+     */
+    public static void warp(ImageProcessor ip, double[][] wp, int transformType, Object outPixels) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        if (width < 2 || height < 2) {
+            System.arraycopy(warpInterpolated(ip, wp, transformType).getPixels(), 0, outPixels, 0, width * height);
+            return;
+        }
+        warpPixels(ip.getPixels(), outPixels, width, height, affineCoefficients(wp, transformType));
+    }
+
+    /**
+     * Allocation-free variant of warp(): writes the aligned result back into ip's own pixel array,
+     * using a workspace copy of the input as the source.
+     */
+    public static void warp(ImageProcessor ip, double[][] wp, int transformType, Workspace ws) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+
+        if (ip.getCalibrationTable() != null || width < 2 || height < 2) {
+            // Calibrated data: keep the exact convertToFloat() semantics of the allocating path
+            Object aligned = warpInterpolated(ip, wp, transformType).getPixels();
+            System.arraycopy(aligned, 0, ip.getPixels(), 0, width * height);
+            return;
         }
+        Object pixels = ip.getPixels();
+        Object src = ws.scratchLike(pixels);
+        System.arraycopy(pixels, 0, src, 0, width * height);
+        warpPixels(src, pixels, width, height, affineCoefficients(wp, transformType));
+    }
+
+    // Original per-pixel ImageProcessor path (float conversion + getInterpolatedPixel)
+    private static ImageProcessor warpInterpolated(ImageProcessor ip, double[][] wp, int transformType) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
         
         // Use Float for high-quality interpolation
         ImageProcessor ipFloatIn = ip.convertToFloat();
@@ -80,24 +324,44 @@ public class LegacyAligner {
 
     // --- Private Helpers ---
 
+    /** convertToFloat() into a workspace buffer (falls back to convertToFloat() for RGB / calibrated data). */
+    private static ImageProcessor toFloat(ImageProcessor ip, FloatProcessor[] slot, Workspace ws) {
+        if (ip instanceof ColorProcessor || ip.getCalibrationTable() != null) return ip.convertToFloat();
+        int n = ip.getWidth() * ip.getHeight();
+        FloatProcessor fp = Workspace.get(slot, 0, ip.getWidth(), ip.getHeight());
+        float[] out = (float[])fp.getPixels();
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            byte[] in = (byte[])pixels;
+            for (int i = 0; i < n; i++) out[i] = in[i] & 255;
+        } else if (pixels instanceof short[]) {
+            short[] in = (short[])pixels;
+            for (int i = 0; i < n; i++) out[i] = in[i] & 0xffff;
+        } else {
+            System.arraycopy((float[])pixels, 0, out, 0, n);
+        }
+        return fp;
+    }
+
+    // Levels already present in the array (with the right size) are reused instead of reallocated.
     private static void buildPyramid(ImageProcessor ip, ImageProcessor[] pyramid, int width, int height, int maxLevel) {
         pyramid[0] = ip; 
         if (maxLevel >= 1 && width >= 100 && height >= 100) {
-            pyramid[1] = resize(ip, width/2, height/2);
+            pyramid[1] = resize(ip, width/2, height/2, pyramid[1]);
             if (maxLevel >= 2 && width >= 200 && height >= 200) {
-                pyramid[2] = resize(ip, width/4, height/4);
+                pyramid[2] = resize(ip, width/4, height/4, pyramid[2]);
                 if (maxLevel >= 3 && width >= 400 && height >= 400) {
-                    pyramid[3] = resize(ip, width/8, height/8);
+                    pyramid[3] = resize(ip, width/8, height/8, pyramid[3]);
                     if (maxLevel >= 4 && width >= 800 && height >= 800) {
-                        pyramid[4] = resize(ip, width/16, height/16);
+                        pyramid[4] = resize(ip, width/16, height/16, pyramid[4]);
                     }
                 }
             }
         }
     }
     
-    private static ImageProcessor resize(ImageProcessor ip, int w, int h) {
-        ImageProcessor out = new FloatProcessor(w, h);
+    private static ImageProcessor resize(ImageProcessor ip, int w, int h, ImageProcessor reuse) {
+        ImageProcessor out = (reuse instanceof FloatProcessor && reuse.getWidth() == w && reuse.getHeight() == h) ? reuse : new FloatProcessor(w, h);
         resizeLogic(out, ip);
         return out;
     }
@@ -108,6 +372,7 @@ public class LegacyAligner {
         double xScale = ip.getWidth() / (double)widthOut;
         double yScale = ip.getHeight() / (double)heightOut;
         float[] pixelsOut = (float[])ipOut.getPixels();
+        if (SIMD != null && ip instanceof FloatProcessor && SIMD.halve((float[])ip.getPixels(), ip.getWidth(), ip.getHeight(), pixelsOut, widthOut, heightOut)) return;
         for (int i = 0, y = 0; y < heightOut; ++y) {
             double ys = y * yScale;
             for (int x = 0; x < widthOut; ++x) {
@@ -116,159 +381,126 @@ public class LegacyAligner {
         }
     }
 
-    private static double[][] estimateTranslation(double[][] wp, ImageProcessor[] ipPyramid, ImageProcessor[] ipRefPyramid, 
-                                                  int maxIter, double tol, int maxLevel) {
-        for(int i=maxLevel; i>=1; i--) {
-            if (ipPyramid[i] != null && ipRefPyramid[i] != null) {
-                ImageProcessor g1 = new FloatProcessor(ipPyramid[i].getWidth(), ipPyramid[i].getHeight());
-                ImageProcessor g2 = new FloatProcessor(ipRefPyramid[i].getWidth(), ipRefPyramid[i].getHeight());
+    // wp is refined in place; the gradient buffers' borders are never written, so they stay zero across reuse.
+    private static int estimatePyramid(double[][] wp, ImageProcessor[] ipPyramid, Reference ref, int maxIter, double tol, Workspace ws) {
+        boolean translation = ref.transformType == TRANSLATION;
+        int iterations = 0;
+        for(int i=ref.pyramidLevel; i>=1; i--) {
+            if (ipPyramid[i] != null && ref.levels[i] != null) {
+                ImageProcessor g1 = Workspace.get(ws.grad, i, ipPyramid[i].getWidth(), ipPyramid[i].getHeight());
                 gradient(g1, ipPyramid[i]);
-                gradient(g2, ipRefPyramid[i]);
                 
-                wp = estimateTranslationCore(wp, g1, g2, maxIter, tol);
-                wp[0][0] *= 2; wp[1][0] *= 2; 
+                if (translation) {
+                    iterations += estimateTranslationCore(wp, g1, ref.levels[i], maxIter, tol, 0, ws);
+                    wp[0][0] *= 2; wp[1][0] *= 2; 
+                } else {
+                    iterations += estimateAffineCore(wp, g1, ref.levels[i], maxIter, tol, 0, ws);
+                    wp[0][2] *= 2; wp[1][2] *= 2;
+                }
             }
         }
-        ImageProcessor g1 = new FloatProcessor(ipPyramid[0].getWidth(), ipPyramid[0].getHeight());
-        ImageProcessor g2 = new FloatProcessor(ipRefPyramid[0].getWidth(), ipRefPyramid[0].getHeight());
+        ImageProcessor g1 = Workspace.get(ws.grad, 0, ipPyramid[0].getWidth(), ipPyramid[0].getHeight());
         gradient(g1, ipPyramid[0]);
-        gradient(g2, ipRefPyramid[0]);
-        return estimateTranslationCore(wp, g1, g2, maxIter, tol);
+        if (translation) iterations += estimateTranslationCore(wp, g1, ref.levels[0], maxIter, tol, 0, ws);
+        else iterations += estimateAffineCore(wp, g1, ref.levels[0], maxIter, tol, 0, ws);
+        return iterations;
     }
 
-    private static double[][] estimateAffine(double[][] wp, ImageProcessor[] ipPyramid, ImageProcessor[] ipRefPyramid, 
-                                             int maxIter, double tol, int maxLevel) {
-        for(int i=maxLevel; i>=1; i--) {
-            if (ipPyramid[i] != null && ipRefPyramid[i] != null) {
-                ImageProcessor g1 = new FloatProcessor(ipPyramid[i].getWidth(), ipPyramid[i].getHeight());
-                ImageProcessor g2 = new FloatProcessor(ipRefPyramid[i].getWidth(), ipRefPyramid[i].getHeight());
-                gradient(g1, ipPyramid[i]);
-                gradient(g2, ipRefPyramid[i]);
-                
-                wp = estimateAffineCore(wp, g1, g2, maxIter, tol);
-                wp[0][2] *= 2; wp[1][2] *= 2;
-            }
-        }
-        ImageProcessor g1 = new FloatProcessor(ipPyramid[0].getWidth(), ipPyramid[0].getHeight());
-        ImageProcessor g2 = new FloatProcessor(ipRefPyramid[0].getWidth(), ipRefPyramid[0].getHeight());
-        gradient(g1, ipPyramid[0]);
-        gradient(g2, ipRefPyramid[0]);
-        return estimateAffineCore(wp, g1, g2, maxIter, tol);
-    }
+    // On return wp holds the best (lowest RMSE) parameters found at this level; returns the iterations used.
+    // stepTol > 0 also stops once an update moves no corner of the level by more than stepTol px.
+    private static int estimateAffineCore(double[][] wp, ImageProcessor ip, Level ref, int maxIter, double tol, double stepTol, Workspace ws) {
+        ImageProcessor ipRef = ref.gradient;
+        float[][] sd = ref.sd;
+        double[][] h = ref.hInv;
 
-    private static double[][] estimateAffineCore(double[][] wp, ImageProcessor ip, ImageProcessor ipRef, int maxIter, double tol) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        float[] jx = new float[width * height];
-        float[] jy = new float[width * height];
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                jx[y * width + x] = (float)x;
-                jy[y * width + x] = (float)y;
-            }
-        }
-        float[][] sd = new float[6][];
-        sd[4] = dx(ipRef);
-        sd[5] = dy(ipRef);
-        sd[0] = dot(sd[4], jx);
-        sd[1] = dot(sd[5], jx);
-        sd[2] = dot(sd[4], jy);
-        sd[3] = dot(sd[5], jy);
-
-        ImageProcessor ipOut = ip.duplicate();
-        double[] dp = { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0 };
-        double[][] bestWp = new double[2][3];
+        double[] dp = ws.dpA;
+        double[] dpOut = ws.dpAOut;
+        double[][] bestWp = ws.bestWpA;
         for(int i=0;i<2;i++) System.arraycopy(wp[i], 0, bestWp[i], 0, 3);
 
-        double[][] d = { {1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0} };
-        double[][] h = new double[6][6];
-
-        for (int y = 0; y < 6; ++y)
-            for (int x = 0; x < 6; ++x) h[y][x] = dotSum(sd[x], sd[y]);
-        h = invert(h);
+        double[][] d = ws.d;
+        double[][] w = ws.w;
 
+        boolean nanFree = isNanFree((float[])ip.getPixels());
         double oldRmse = Double.MAX_VALUE;
         double minRmse = Double.MAX_VALUE;
 
-        for (int iter = 0; iter < maxIter; ++iter) {
-            warpAffine(ipOut, ip, wp);
-            subtract(ipOut, ipRef);
-            double rmse = rootMeanSquare(ipOut);
+        int iter = 0;
+        for (; iter < maxIter; ++iter) {
+            double rmse = residualAffine(ip, ipRef, sd, wp, dp, nanFree);
             if (iter > 0) {
                 if (rmse < minRmse) {
                     for(int i=0;i<2;i++) System.arraycopy(wp[i], 0, bestWp[i], 0, 3);
                     minRmse = rmse;
                 }
-                if (Math.abs((oldRmse - rmse) / (oldRmse + Double.MIN_VALUE)) < tol) break;
+                if (Math.abs((oldRmse - rmse) / (oldRmse + Double.MIN_VALUE)) < tol) { iter++; break; }
             }
             oldRmse = rmse;
-            float[] error = (float[])ipOut.getPixels();
-            for(int i=0;i<6;i++) dp[i] = dotSum(sd[i], error);
-            dp = prod(h, dp);
+            prod(h, dp, dpOut);
+            if (stepTol > 0 && cornerShift(dpOut[0], dpOut[1], dpOut[2], dpOut[3], dpOut[4], dpOut[5], ip.getWidth(), ip.getHeight()) < stepTol) { iter++; break; }
 
-            d[0][0] = dp[0] + 1.0; d[0][1] = dp[2]; d[0][2] = dp[4];
-            d[1][0] = dp[1]; d[1][1] = dp[3] + 1.0; d[1][2] = dp[5];
+            d[0][0] = dpOut[0] + 1.0; d[0][1] = dpOut[2]; d[0][2] = dpOut[4];
+            d[1][0] = dpOut[1]; d[1][1] = dpOut[3] + 1.0; d[1][2] = dpOut[5];
             d[2][0] = 0.0; d[2][1] = 0.0; d[2][2] = 1.0;
 
             w[0][0] = wp[0][0] + 1.0; w[0][1] = wp[0][1]; w[0][2] = wp[0][2];
             w[1][0] = wp[1][0]; w[1][1] = wp[1][1] + 1.0; w[1][2] = wp[1][2];
             w[2][0] = 0.0; w[2][1] = 0.0; w[2][2] = 1.0;
 
-            w = prod(w, invert(d));
-            wp[0][0] = w[0][0] - 1.0; wp[0][1] = w[0][1]; wp[0][2] = w[0][2];
-            wp[1][0] = w[1][0]; wp[1][1] = w[1][1] - 1.0; wp[1][2] = w[1][2];
+            double[][] wNew = prod(w, invert(d, ws), ws.wOut);
+            wp[0][0] = wNew[0][0] - 1.0; wp[0][1] = wNew[0][1]; wp[0][2] = wNew[0][2];
+            wp[1][0] = wNew[1][0]; wp[1][1] = wNew[1][1] - 1.0; wp[1][2] = wNew[1][2];
         }
-        return bestWp;
+        for(int i=0;i<2;i++) System.arraycopy(bestWp[i], 0, wp[i], 0, 3);
+        return iter;
     }
 
-    private static double[][] estimateTranslationCore(double[][] wp, ImageProcessor ip, ImageProcessor ipRef, int maxIter, double tol) {
-        float[] dxRef = dx(ipRef);
-        float[] dyRef = dy(ipRef);
-        ImageProcessor ipOut = ip.duplicate();
-        double[] dp = { 0.0, 0.0 };
-        double[][] bestWp = new double[2][1];
+    // On return wp holds the best (lowest RMSE) parameters found at this level; returns the iterations used.
+    // stepTol > 0 also stops once an update is shorter than stepTol px.
+    private static int estimateTranslationCore(double[][] wp, ImageProcessor ip, Level ref, int maxIter, double tol, double stepTol, Workspace ws) {
+        ImageProcessor ipRef = ref.gradient;
+        float[] dxRef = ref.sd[0];
+        float[] dyRef = ref.sd[1];
+        double[][] h = ref.hInv;
+        double[] dp = ws.dpT;
+        double[] dpOut = ws.dpTOut;
+        double[][] bestWp = ws.bestWpT;
         bestWp[0][0] = wp[0][0]; bestWp[1][0] = wp[1][0];
 
-        double[][] d = { {1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0} };
-        double[][] h = new double[2][2];
-
-        h[0][0] = dotSum(dxRef, dxRef); h[1][0] = dotSum(dxRef, dyRef);
-        h[0][1] = dotSum(dyRef, dxRef); h[1][1] = dotSum(dyRef, dyRef);
-        h = invert(h);
+        double[][] d = ws.d;
+        double[][] w = ws.w;
 
+        boolean nanFree = isNanFree((float[])ip.getPixels());
         double oldRmse = Double.MAX_VALUE;
         double minRmse = Double.MAX_VALUE;
 
-        for (int iter = 0; iter < maxIter; ++iter) {
-            warpTranslation(ipOut, ip, wp);
-            subtract(ipOut, ipRef);
-            double rmse = rootMeanSquare(ipOut);
+        int iter = 0;
+        for (; iter < maxIter; ++iter) {
+            double rmse = residualTranslation(ip, ipRef, dxRef, dyRef, wp, dp, nanFree);
             if (iter > 0) {
                 if (rmse < minRmse) {
                     bestWp[0][0] = wp[0][0]; bestWp[1][0] = wp[1][0];
                     minRmse = rmse;
                 }
-                if (Math.abs((oldRmse - rmse) / (oldRmse + Double.MIN_VALUE)) < tol) break;
+                if (Math.abs((oldRmse - rmse) / (oldRmse + Double.MIN_VALUE)) < tol) { iter++; break; }
             }
             oldRmse = rmse;
-            float[] error = (float[])ipOut.getPixels();
-            dp[0] = dotSum(dxRef, error); dp[1] = dotSum(dyRef, error);
-            dp = prod(h, dp);
+            prod(h, dp, dpOut);
+            if (stepTol > 0 && Math.hypot(dpOut[0], dpOut[1]) < stepTol) { iter++; break; }
 
-            d[0][0] = 1.0; d[0][1] = 0.0; d[0][2] = dp[0];
-            d[1][0] = 0.0; d[1][1] = 1.0; d[1][2] = dp[1];
+            d[0][0] = 1.0; d[0][1] = 0.0; d[0][2] = dpOut[0];
+            d[1][0] = 0.0; d[1][1] = 1.0; d[1][2] = dpOut[1];
             d[2][0] = 0.0; d[2][1] = 0.0; d[2][2] = 1.0;
 
             w[0][0] = 1.0; w[0][1] = 0.0; w[0][2] = wp[0][0];
             w[1][0] = 0.0; w[1][1] = 1.0; w[1][2] = wp[1][0];
             w[2][0] = 0.0; w[2][1] = 0.0; w[2][2] = 1.0;
 
-            w = prod(w, invert(d));
-            wp[0][0] = w[0][2]; wp[1][0] = w[1][2];
+            double[][] wNew = prod(w, invert(d, ws), ws.wOut);
+            wp[0][0] = wNew[0][2]; wp[1][0] = wNew[1][2];
         }
-        return bestWp;
+        wp[0][0] = bestWp[0][0]; wp[1][0] = bestWp[1][0];
+        return iter;
     }
 
     // --- Core Math ---
@@ -277,6 +509,7 @@ public class LegacyAligner {
         int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
         float[] outPixels = (float[])ipOut.getPixels();
+        if (SIMD != null) { SIMD.gradient(pixels, outPixels, width, height); return; }
         for (int y = 1; y + 1 < height; ++y) {
             int offset = 1 + y * width;
             double p1 = 0f; double p2 = pixels[offset - width - 1]; double p3 = pixels[offset - width]; double p4 = 0f; double p5 = pixels[offset - 1]; double p6 = pixels[offset]; double p7 = 0f; double p8 = pixels[offset + width - 1]; double p9 = pixels[offset + width];     
@@ -291,23 +524,113 @@ public class LegacyAligner {
         }
     }
 
-    private static void subtract(ImageProcessor ipOut, ImageProcessor ip) {
+    /**
+     * Fused Lucas-Kanade iteration kernel: a single pass that warps ip by wp (inlined bilinear on the
+     * raw float[]), forms the residual against the reference and accumulates both the squared error
+     * and the six steepest-descent projections into dp. Returns the RMSE.
+     * Same arithmetic (and result) as warpAffine + subtract + rootMeanSquare + 6x dotSum.
+     */
+    private static double residualAffine(ImageProcessor ip, ImageProcessor ipRef, float[][] sd, double[][] wp, double[] dp, boolean nanFree) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = (float[])ipOut.getPixels();
-        for (int i = 0; i < pixels.length; ++i) outPixels[i] = outPixels[i] - pixels[i];
+        float[] refPixels = (float[])ipRef.getPixels();
+        float[] sd0 = sd[0], sd1 = sd[1], sd2 = sd[2], sd3 = sd[3], sd4 = sd[4], sd5 = sd[5];
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        if (SIMD != null && nanFree) return SIMD.residualAffine(pixels, refPixels, sd, width, height, new double[]{a00, a01, a02, a10, a11, a12}, dp);
+        double sq = 0.0, s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0;
+        for (int p = 0, y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x, ++p) {
+                double xx = a00 * x + a01 * y + a02;
+                double yy = a10 * x + a11 * y + a12;
+                float e = (float)(nanFree ? interpolateFinite(pixels, width, height, xx, yy) : interpolate(pixels, width, height, xx, yy)) - refPixels[p];
+                sq += e * e;
+                s0 += sd0[p] * e; s1 += sd1[p] * e; s2 += sd2[p] * e;
+                s3 += sd3[p] * e; s4 += sd4[p] * e; s5 += sd5[p] * e;
+            }
+        }
+        dp[0] = s0; dp[1] = s1; dp[2] = s2; dp[3] = s3; dp[4] = s4; dp[5] = s5;
+        return Math.sqrt(sq / pixels.length);
     }
 
-    private static double rootMeanSquare(ImageProcessor ip) {
-        double mean = 0.0;
+    /** Translation counterpart of {@link #residualAffine}. */
+    private static double residualTranslation(ImageProcessor ip, ImageProcessor ipRef, float[] dxRef, float[] dyRef, double[][] wp, double[] dp, boolean nanFree) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
-        for (int i = 0; i < pixels.length; ++i) mean += pixels[i] * pixels[i];
-        mean /= pixels.length;
-        return Math.sqrt(mean);
+        float[] refPixels = (float[])ipRef.getPixels();
+        double tx = wp[0][0], ty = wp[1][0];
+        if (SIMD != null && nanFree) return SIMD.residualTranslation(pixels, refPixels, dxRef, dyRef, width, height, tx, ty, dp);
+        double sq = 0.0, sx = 0.0, sy = 0.0;
+        for (int p = 0, y = 0; y < height; ++y) {
+            double yy = y + ty;
+            for (int x = 0; x < width; ++x, ++p) {
+                float e = (float)(nanFree ? interpolateFinite(pixels, width, height, x + tx, yy) : interpolate(pixels, width, height, x + tx, yy)) - refPixels[p];
+                sq += e * e;
+                sx += dxRef[p] * e;
+                sy += dyRef[p] * e;
+            }
+        }
+        dp[0] = sx; dp[1] = sy;
+        return Math.sqrt(sq / pixels.length);
+    }
+
+    private static boolean isNanFree(float[] pixels) {
+        for (float v : pixels) if (v != v) return false;
+        return true;
+    }
+
+    // interpolate() for NaN-free images: the NaN branches can never fire, so they are skipped
+    private static double interpolateFinite(float[] pixels, int width, int height, double x, double y) {
+        if (x < 0.0) x = 0.0;
+        if (x >= width - 1.0) x = width - 1.001;
+        if (y < 0.0) y = 0.0;
+        if (y >= height - 1.0) y = height - 1.001;
+        int xbase = (int)x;
+        int ybase = (int)y;
+        double xFraction = x - xbase;
+        double yFraction = y - ybase;
+        int offset = ybase * width + xbase;
+        double lowerLeft = pixels[offset];
+        double lowerRight = pixels[offset + 1];
+        double upperRight = pixels[offset + width + 1];
+        double upperLeft = pixels[offset + width];
+        double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+        double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+        return lowerAverage + yFraction * (upperAverage - lowerAverage);
+    }
+
+    // Bilinear interpolation with edge clamping and NaN handling, as FloatProcessor.getInterpolatedPixel()
+    private static double interpolate(float[] pixels, int width, int height, double x, double y) {
+        if (x < 0.0) x = 0.0;
+        if (x >= width - 1.0) x = width - 1.001;
+        if (y < 0.0) y = 0.0;
+        if (y >= height - 1.0) y = height - 1.001;
+        int xbase = (int)x;
+        int ybase = (int)y;
+        double xFraction = x - xbase;
+        double yFraction = y - ybase;
+        int offset = ybase * width + xbase;
+        double lowerLeft = pixels[offset];
+        double lowerRight = pixels[offset + 1];
+        double upperRight = pixels[offset + width + 1];
+        double upperLeft = pixels[offset + width];
+        double upperAverage;
+        if (Double.isNaN(upperLeft) && xFraction >= 0.5) upperAverage = upperRight;
+        else if (Double.isNaN(upperRight) && xFraction < 0.5) upperAverage = upperLeft;
+        else upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+        double lowerAverage;
+        if (Double.isNaN(lowerLeft) && xFraction >= 0.5) lowerAverage = lowerRight;
+        else if (Double.isNaN(lowerRight) && xFraction < 0.5) lowerAverage = lowerLeft;
+        else lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+        if (Double.isNaN(lowerAverage) && yFraction >= 0.5) return upperAverage;
+        else if (Double.isNaN(upperAverage) && yFraction < 0.5) return lowerAverage;
+        else return lowerAverage + yFraction * (upperAverage - lowerAverage);
     }
 
-    private static void gaussian(double a[][], int index[]) {
+    private static void gaussian(double a[][], int index[], double[] c) {
         int n = index.length;
-        double[] c = new double[n];
         for (int i = 0; i < n; ++i) index[i] = i;
         for (int i = 0; i < n; ++i) {
             double c1 = 0;
@@ -337,11 +660,18 @@ public class LegacyAligner {
     // [Fix] Corrected Scope for 'invert'
     private static double[][] invert(double a[][]) {
         int n = a.length;
-        double[][] x = new double[n][n];
-        double[][] b = new double[n][n];
-        int index[] = new int[n];
-        for (int i = 0; i < n; ++i) b[i][i] = 1;
-        gaussian(a, index);
+        return invert(a, new double[n][n], new double[n][n], new int[n], new double[n]);
+    }
+
+    // 3x3 inverse into workspace buffers (a is destroyed)
+    private static double[][] invert(double a[][], Workspace ws) {
+        return invert(a, ws.dInv, ws.invB, ws.invIndex, ws.invC);
+    }
+
+    private static double[][] invert(double a[][], double[][] x, double[][] b, int[] index, double[] c) {
+        int n = a.length;
+        for (int i = 0; i < n; ++i) { Arrays.fill(b[i], 0.0); b[i][i] = 1; }
+        gaussian(a, index, c);
         for (int i = 0; i < n - 1; ++i)
             for (int j = i + 1; j < n; ++j)
                 for (int k = 0; k < n; ++k) b[index[j]][k] -= a[index[j]][i] * b[index[i]][k];
@@ -361,6 +691,7 @@ public class LegacyAligner {
         int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
         float[] outPixels = new float[width * height];
+        if (SIMD != null) { SIMD.dx(pixels, outPixels, width, height); return outPixels; }
         for (int y = 0; y < height; ++y) {
             outPixels[y * width] = (float)(pixels[y * width + 1] - pixels[y * width]);
             outPixels[y * width + width - 1] = (float)(pixels[y * width + width - 1] - pixels[y * width + width - 2]);
@@ -376,6 +707,7 @@ public class LegacyAligner {
         int height = ip.getHeight();
         float[] pixels = (float[])ip.getPixels();
         float[] outPixels = new float[width * height];
+        if (SIMD != null) { SIMD.dy(pixels, outPixels, width, height); return outPixels; }
         for (int x = 0; x < (int)width; ++x) {
             outPixels[x] = (float)(pixels[width + x] - pixels[x]);
             outPixels[(height - 1) * width + x] = (float)(pixels[width * (height - 1) + x] - pixels[width * (height - 2) + x]);
@@ -389,20 +721,21 @@ public class LegacyAligner {
     private static float[] dot(float[] p1, float[] p2) {
         int n = p1.length < p2.length ? p1.length : p2.length;
         float[] output = new float[n];
+        if (SIMD != null) { SIMD.dot(p1, p2, output, n); return output; }
         for (int i = 0; i < n; ++i) output[i] = p1[i] * p2[i];
         return output;
     }
 
     private static double dotSum(float[] p1, float[] p2) {
-        double sum = 0.0;
         int n = p1.length < p2.length ? p1.length : p2.length;
+        if (SIMD != null) return SIMD.dotSum(p1, p2, n);
+        double sum = 0.0;
         for (int i = 0; i < n; ++i) sum += p1[i] * p2[i];
         return sum;
     }
 
-    private static double[] prod(double[][] m, double[] v) {
+    private static double[] prod(double[][] m, double[] v, double[] out) {
         int n = v.length;
-        double[] out = new double[n];
         for (int j = 0; j < n; ++j) {
             out[j] = 0.0;
             for (int i = 0; i < n; ++i) out[j] = out[j] + m[j][i] * v[i];
@@ -410,8 +743,7 @@ public class LegacyAligner {
         return out;
     }
 
-    private static double[][] prod(double[][] a, double[][] b) {
-        double[][] out = new double[a.length][b[0].length];
+    private static double[][] prod(double[][] a, double[][] b, double[][] out) {
         for (int i = 0; i < a.length; ++i) {
             for (int j = 0; j < b[i].length; ++j) {
                 out[i][j] = 0.0;
@@ -421,6 +753,109 @@ public class LegacyAligner {
         return out;
     }
 
+    // --- Typed Warp Engine ---
+
+    // {a00, a01, a02, a10, a11, a12}: source x = a00*x + a01*y + a02, source y = a10*x + a11*y + a12.
+    // The engines evaluate this per pixel in that order, as the getInterpolatedPixel path does, so the coordinates
+    // (and the output) are the same bit for bit; stepping them along the row would round differently.
+    private static double[] affineCoefficients(double[][] wp, int transformType) {
+        if (transformType == TRANSLATION) return new double[]{1.0, 0.0, wp[0][0], 0.0, 1.0, wp[1][0]};
+        return new double[]{1.0 + wp[0][0], wp[0][1], wp[0][2], wp[1][0], 1.0 + wp[1][1], wp[1][2]};
+    }
+
+    private static void warpPixels(Object src, Object dst, int width, int height, double[] a) {
+        if (src instanceof byte[]) warpBytes((byte[])src, (byte[])dst, width, height, a);
+        else if (src instanceof short[]) warpShorts((short[])src, (short[])dst, width, height, a);
+        else if (src instanceof float[]) warpFloats((float[])src, (float[])dst, width, height, a);
+        else if (src instanceof int[]) warpRGB((int[])src, (int[])dst, width, height, a);
+        else throw new IllegalArgumentException("Unsupported pixel type: " + src.getClass().getSimpleName());
+    }
+
+    // Rounds like convertToByte(false)
+    private static void warpBytes(byte[] src, byte[] dst, int width, int height, double[] a) {
+        double xMax = width - 1.0, yMax = height - 1.0, xEdge = width - 1.001, yEdge = height - 1.001;
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xRow = a[1] * y, yRow = a[4] * y;
+            for (int x = 0; x < width; ++x, ++p) {
+                double xs = a[0] * x + xRow + a[2], ys = a[3] * x + yRow + a[5];
+                double xx = xs < 0.0 ? 0.0 : (xs >= xMax ? xEdge : xs);
+                double yy = ys < 0.0 ? 0.0 : (ys >= yMax ? yEdge : ys);
+                int xbase = (int)xx, ybase = (int)yy;
+                double xf = xx - xbase, yf = yy - ybase;
+                int o = ybase * width + xbase;
+                double ll = src[o] & 0xff, lr = src[o + 1] & 0xff;
+                double ul = src[o + width] & 0xff, ur = src[o + width + 1] & 0xff;
+                double upper = ul + xf * (ur - ul);
+                double lower = ll + xf * (lr - ll);
+                float value = (float)(lower + yf * (upper - lower)) + 0.5f;
+                if (value > 255f) value = 255f;
+                dst[p] = (byte)value;
+            }
+        }
+    }
+
+    // Rounds like convertToShort(false)
+    private static void warpShorts(short[] src, short[] dst, int width, int height, double[] a) {
+        double xMax = width - 1.0, yMax = height - 1.0, xEdge = width - 1.001, yEdge = height - 1.001;
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xRow = a[1] * y, yRow = a[4] * y;
+            for (int x = 0; x < width; ++x, ++p) {
+                double xs = a[0] * x + xRow + a[2], ys = a[3] * x + yRow + a[5];
+                double xx = xs < 0.0 ? 0.0 : (xs >= xMax ? xEdge : xs);
+                double yy = ys < 0.0 ? 0.0 : (ys >= yMax ? yEdge : ys);
+                int xbase = (int)xx, ybase = (int)yy;
+                double xf = xx - xbase, yf = yy - ybase;
+                int o = ybase * width + xbase;
+                double ll = src[o] & 0xffff, lr = src[o + 1] & 0xffff;
+                double ul = src[o + width] & 0xffff, ur = src[o + width + 1] & 0xffff;
+                double upper = ul + xf * (ur - ul);
+                double lower = ll + xf * (lr - ll);
+                double value = (float)(lower + yf * (upper - lower));
+                if (value > 65535.0) value = 65535.0;
+                dst[p] = (short)(value + 0.5);
+            }
+        }
+    }
+
+    private static void warpFloats(float[] src, float[] dst, int width, int height, double[] a) {
+        boolean nanFree = isNanFree(src);
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xRow = a[1] * y, yRow = a[4] * y;
+            for (int x = 0; x < width; ++x, ++p) {
+                double xs = a[0] * x + xRow + a[2], ys = a[3] * x + yRow + a[5];
+                dst[p] = (float)(nanFree ? interpolateFinite(src, width, height, xs, ys) : interpolate(src, width, height, xs, ys));
+            }
+        }
+    }
+
+    // Per-channel rounding like ColorProcessor.getInterpolatedRGBPixel()
+    private static void warpRGB(int[] src, int[] dst, int width, int height, double[] a) {
+        double xMax = width - 1.0, yMax = height - 1.0, xEdge = width - 1.001, yEdge = height - 1.001;
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xRow = a[1] * y, yRow = a[4] * y;
+            for (int x = 0; x < width; ++x, ++p) {
+                double xs = a[0] * x + xRow + a[2], ys = a[3] * x + yRow + a[5];
+                double xx = xs < 0.0 ? 0.0 : (xs >= xMax ? xEdge : xs);
+                double yy = ys < 0.0 ? 0.0 : (ys >= yMax ? yEdge : ys);
+                int xbase = (int)xx, ybase = (int)yy;
+                double xf = xx - xbase, yf = yy - ybase;
+                int o = ybase * width + xbase;
+                int ll = src[o], lr = src[o + 1], ul = src[o + width], ur = src[o + width + 1];
+                int r = lerpChannel(ll, lr, ul, ur, 16, xf, yf);
+                int g = lerpChannel(ll, lr, ul, ur, 8, xf, yf);
+                int b = lerpChannel(ll, lr, ul, ur, 0, xf, yf);
+                dst[p] = 0xff000000 | ((r & 0xff) << 16) | ((g & 0xff) << 8) | b & 0xff;
+            }
+        }
+    }
+
+    private static int lerpChannel(int ll, int lr, int ul, int ur, int shift, double xf, double yf) {
+        int cll = (ll >> shift) & 0xff, clr = (lr >> shift) & 0xff, cul = (ul >> shift) & 0xff, cur = (ur >> shift) & 0xff;
+        double upper = cul + xf * (cur - cul);
+        double lower = cll + xf * (clr - cll);
+        return (int)(lower + yf * (upper - lower) + 0.5);
+    }
+
     // --- Warping Functions ---
     private static void warpAffine(ImageProcessor ipOut, ImageProcessor ip, double[][] wp) {
         float[] outPixels = (float[])ipOut.getPixels();
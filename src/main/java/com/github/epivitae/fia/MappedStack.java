@@ -0,0 +1,190 @@
+package com.github.epivitae.fia;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only stack backed by a memory-mapped uncompressed TIFF or raw file.
+ * Nothing is read up front: the OS pages frames in on access and drops them under memory pressure, so
+ * files far larger than the heap (or RAM) can be aligned with a small working set. The file is mapped
+ * in windows of about 1 GB, each extended to hold any frame that starts in it.
+ * mat(n) exposes a frame as a zero-copy OpenCV view when the file is in native byte order.
+ */
+public class MappedStack extends VirtualStack {
+
+    private static final long WINDOW = 1L << 30;
+
+    private final String path;
+    private final int bitDepth, bytesPerPixel, frameBytes;
+    private final ByteOrder order;
+    private final long[] offsets;
+    private final MappedByteBuffer[] windows;
+    private final long fileSize;
+    private final FileChannel channel;
+    private int channels = 1, slices, frames = 1;
+
+    /**
+     * @param fi geometry of the data: width, height, nImages, fileType (GRAY8, GRAY16_UNSIGNED, GRAY32_FLOAT),
+     *           intelByteOrder, and either one offset plus gapBetweenImages or, for multi-IFD TIFFs, one FileInfo per image
+     */
+    public MappedStack(String path, FileInfo[] fi) throws IOException {
+        super(fi[0].width, fi[0].height);
+        FileInfo f = fi[0];
+        if (f.compression > FileInfo.COMPRESSION_NONE) throw new IOException("Compressed data can't be memory-mapped; open it normally");
+        switch (f.fileType) {
+            case FileInfo.GRAY8: bitDepth = 8; break;
+            case FileInfo.GRAY16_UNSIGNED: bitDepth = 16; break;
+            case FileInfo.GRAY32_FLOAT: bitDepth = 32; break;
+            default: throw new IOException("Only 8-bit, 16-bit unsigned and 32-bit float data can be memory-mapped");
+        }
+        this.path = path;
+        bytesPerPixel = bitDepth / 8;
+        frameBytes = f.width * f.height * bytesPerPixel;
+        order = f.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        int n = fi.length > 1 ? fi.length : Math.max(1, f.nImages);
+        for (int i=0; i<fi.length; i++) if (!contiguous(fi[i], frameBytes)) throw new IOException("Image " + (i + 1) + " is stored in scattered strips and can't be memory-mapped; open it normally");
+        offsets = new long[n];
+        for (int i=0; i<n; i++) offsets[i] = fi.length > 1 ? fi[i].getOffset() : f.getOffset() + i * (frameBytes + f.getGap());
+        slices = n;
+
+        channel = new RandomAccessFile(path, "r").getChannel();
+        fileSize = channel.size();
+        if (offsets[n - 1] + frameBytes > fileSize) { channel.close(); throw new IOException("File is shorter than its " + n + " images"); }
+        windows = new MappedByteBuffer[(int) (offsets[n - 1] / WINDOW) + 1];
+        if (f.description != null) readDimensions(f.description, n);
+    }
+
+    static final String NO_BIGTIFF = "BigTIFF (64-bit offsets) can't be read by ImageJ's TIFF decoder; save it as an ImageJ TIFF, which has no size limit";
+
+    /** Whether the file starts with a BigTIFF header (version 43), which ImageJ's TiffDecoder misreads as a classic TIFF. */
+    static boolean isBigTiff(String path) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+            if (f.length() < 4) return false;
+            byte[] h = new byte[4]; f.readFully(h);
+            return (h[0] == 'I' && h[1] == 'I' && h[2] == 43 && h[3] == 0) || (h[0] == 'M' && h[1] == 'M' && h[2] == 0 && h[3] == 43);
+        }
+    }
+
+    /** Whether new MappedStack(path, fi) can map this data: uncompressed 8/16/32-bit grey, each image in one piece. */
+    public static boolean canMap(FileInfo[] fi) {
+        FileInfo f = fi[0];
+        if (f.compression > FileInfo.COMPRESSION_NONE) return false;
+        if (f.fileType != FileInfo.GRAY8 && f.fileType != FileInfo.GRAY16_UNSIGNED && f.fileType != FileInfo.GRAY32_FLOAT) return false;
+        int frameBytes = f.width * f.height * f.getBytesPerPixel();
+        for (FileInfo i : fi) if (!contiguous(i, frameBytes)) return false;
+        return true;
+    }
+
+    /**
+     * Whether the image's TIFF strips (if any) run back to back from its offset and cover the whole frame, so it can be
+     * read as one block. Strip offsets are 32-bit; differences are taken modulo 2^32, as in files beyond 4 GB.
+     */
+    private static boolean contiguous(FileInfo f, int frameBytes) {
+        int[] off = f.stripOffsets, len = f.stripLengths;
+        if (off == null || len == null || off.length == 0) return true;
+        if (off[0] != (int) f.getOffset()) return false;
+        long total = len[off.length - 1];
+        for (int j=0; j+1<off.length; j++) {
+            if (off[j + 1] - off[j] != len[j]) return false;
+            total += len[j];
+        }
+        return total >= frameBytes;
+    }
+
+    /** Opens an uncompressed TIFF (ImageJ hyperstack dimensions are taken from its description). */
+    public static MappedStack openTiff(String path) throws IOException {
+        if (isBigTiff(path)) throw new IOException(NO_BIGTIFF);
+        File file = new File(path);
+        FileInfo[] fi = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+        if (fi == null || fi.length == 0) throw new IOException("Not a TIFF file: " + path);
+        return new MappedStack(path, fi);
+    }
+
+    /** A hyperstack ImagePlus over this stack. */
+    public ImagePlus toImagePlus(String title) {
+        ImagePlus imp = new ImagePlus(title, this);
+        imp.setDimensions(channels, slices, frames);
+        if (channels * slices * frames > 1 && (channels > 1 || frames > 1)) imp.setOpenAsHyperStack(true);
+        return imp;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        ByteBuffer b = frame(n);
+        int w = getWidth(), h = getHeight();
+        switch (bitDepth) {
+            case 8: { byte[] px = new byte[w * h]; b.get(px); return new ByteProcessor(w, h, px, null); }
+            case 16: { short[] px = new short[w * h]; b.asShortBuffer().get(px); return new ShortProcessor(w, h, px, null); }
+            default: { float[] px = new float[w * h]; b.asFloatBuffer().get(px); return new FloatProcessor(w, h, px, null); }
+        }
+    }
+
+    /** Frame n (1-based) as a zero-copy Mat over the mapping, or null if the file is not in native byte order. Release the view after use. */
+    public Mat mat(int n) {
+        if (bitDepth > 8 && order != ByteOrder.nativeOrder()) return null;
+        int type = bitDepth == 8 ? CvType.CV_8UC1 : (bitDepth == 16 ? CvType.CV_16UC1 : CvType.CV_32FC1);
+        return new Mat(getHeight(), getWidth(), type, frame(n));
+    }
+
+    @Override public int getSize() { return offsets.length; }
+    @Override public int getBitDepth() { return bitDepth; }
+    @Override public String getSliceLabel(int n) { return null; }
+    @Override public String getDirectory() { return null; }
+    @Override public String getFileName(int n) { return null; }
+
+    /** Frees the file handle; mapped windows stay valid until they are garbage collected. */
+    public void close() { try { channel.close(); } catch (IOException e) {} }
+
+    // Bytes of frame n, ordered for reading
+    private ByteBuffer frame(int n) {
+        long off = offsets[n - 1];
+        int w = (int) (off / WINDOW);
+        MappedByteBuffer window = window(w);
+        ByteBuffer b = window.duplicate();
+        int pos = (int) (off - w * WINDOW);
+        b.position(pos); b.limit(pos + frameBytes);
+        return b.slice().order(order);
+    }
+
+    private synchronized MappedByteBuffer window(int w) {
+        if (windows[w] == null) {
+            long start = w * WINDOW;
+            long size = Math.min(fileSize - start, WINDOW + frameBytes);
+            try { windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, size); }
+            catch (IOException e) { throw new RuntimeException("Can't map " + path + ": " + e.getMessage(), e); }
+        }
+        return windows[w];
+    }
+
+    // channels=/slices=/frames= from an ImageJ TIFF description
+    private void readDimensions(String description, int n) {
+        int c = intProperty(description, "channels"), z = intProperty(description, "slices"), t = intProperty(description, "frames");
+        if (c * z * t == n) { channels = c; slices = z; frames = t; }
+    }
+
+    private static int intProperty(String description, String key) {
+        for (String line : description.split("\n")) {
+            if (line.startsWith(key + "=")) {
+                try { return Math.max(1, Integer.parseInt(line.substring(key.length() + 1).trim())); } catch (NumberFormatException e) { return 1; }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.epivitae.fia;
+
+import org.opencv.core.Mat;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Per-thread reusable Mats for the OpenCV bridge.
+ * Each thread gets one Mat per key; OpenCV's create() keeps the native buffer when the shape and type
+ * are unchanged, so fixed-shape source/destination/flow/map buffers are allocated once per run.
+ * releaseAll() frees every pooled buffer deterministically instead of waiting for GC finalization.
+ */
+public class MatPool {
+
+    private final Queue<Mat> all = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Map<String, Mat>> local = ThreadLocal.withInitial(HashMap::new);
+    private volatile int generation;
+    private final ThreadLocal<int[]> localGeneration = ThreadLocal.withInitial(() -> new int[]{-1});
+    private long peakBytes;
+
+    /** The calling thread's Mat for key (shape is whatever it was last used with). */
+    public Mat get(String key) {
+        Map<String, Mat> mats = local.get();
+        int[] gen = localGeneration.get();
+        if (gen[0] != generation) { mats.clear(); gen[0] = generation; }
+        Mat m = mats.get(key);
+        if (m == null) { m = new Mat(); mats.put(key, m); all.add(m); }
+        return m;
+    }
+
+    /** The calling thread's Mat for key, (re)allocated only if the shape or type changed. */
+    public Mat get(String key, int rows, int cols, int type) {
+        Mat m = get(key);
+        m.create(rows, cols, type);
+        return m;
+    }
+
+    /** Native bytes currently held by pooled Mats. */
+    public long bytes() {
+        long sum = 0;
+        for (Mat m : all) sum += m.total() * m.elemSize();
+        return sum;
+    }
+
+    /** Records bytes() towards peakBytes(); it walks every pooled Mat, so call it once per frame at most. */
+    public void sample() {
+        long b = bytes();
+        synchronized (this) { if (b > peakBytes) peakBytes = b; }
+    }
+
+    /** Largest bytes() seen by sample(), releaseAll() or now. */
+    public synchronized long peakBytes() { return Math.max(peakBytes, bytes()); }
+
+    public int size() { return all.size(); }
+
+    /** Frees every pooled Mat. The pool stays usable; threads start over with fresh Mats. */
+    public synchronized void releaseAll() {
+        peakBytes = Math.max(peakBytes, bytes());
+        generation++;
+        Mat m;
+        while ((m = all.poll()) != null) m.release();
+    }
+
+    /** Peak resident set size of this process in bytes (Linux VmHWM), or -1 if unavailable. */
+    public static long processPeakRss() {
+        try (BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024L;
+            }
+        } catch (Exception e) {}
+        return -1;
+    }
+}
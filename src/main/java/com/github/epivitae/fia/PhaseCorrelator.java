@@ -0,0 +1,128 @@
+package com.github.epivitae.fia;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FFT phase-correlation translation estimator.
+ * The windowed reference spectrum is computed once per run; each frame then costs one forward
+ * and one inverse DFT, independent of how large the displacement is.
+ * Thread-safe: estimate() only reads the cached reference data.
+ */
+public class PhaseCorrelator {
+
+    private final int width, height;
+    private final int dftWidth, dftHeight;
+    private final Mat window;
+    private final Mat refSpectrum;
+
+    /**
+     * @param reference single-channel reference frame (any depth)
+     */
+    public PhaseCorrelator(Mat reference) { this(reference, null); }
+
+    /**
+     * @param reference single-channel reference frame (any depth)
+     * @param mask      8-bit mask of the same size (non-zero = used), or null for the whole frame. It is feathered
+     *                  into the window, so only the masked area correlates and its outline does not.
+     */
+    public PhaseCorrelator(Mat reference, Mat mask) {
+        width = reference.cols();
+        height = reference.rows();
+        dftWidth = Core.getOptimalDFTSize(width);
+        dftHeight = Core.getOptimalDFTSize(height);
+        window = new Mat();
+        Imgproc.createHanningWindow(window, reference.size(), CvType.CV_32F);
+        if (mask != null) {
+            Mat soft = new Mat();
+            Imgproc.threshold(mask, soft, 0, 1, Imgproc.THRESH_BINARY);
+            soft.convertTo(soft, CvType.CV_32F);
+            Imgproc.GaussianBlur(soft, soft, new Size(0, 0), Math.max(2, Math.min(width, height) / 64.0));
+            Core.multiply(window, soft, window);
+            soft.release();
+        }
+        refSpectrum = spectrum(reference);
+    }
+
+    /**
+     * Estimate the displacement of frame relative to the reference.
+     * @return {dx, dy, response}: frame(x) ~ reference(x - d), so a warp with WARP_INVERSE_MAP
+     *         (or a Legacy warp) aligns the frame with translation (dx, dy). response is the
+     *         normalised correlation peak height (0..1), a confidence measure.
+     */
+    public double[] estimate(Mat frame) {
+        Mat spec = spectrum(frame);
+        Mat cross = new Mat();
+        Core.mulSpectrums(refSpectrum, spec, cross, 0, true);
+
+        // Keep the phase only
+        List<Mat> planes = new ArrayList<>();
+        Core.split(cross, planes);
+        Mat mag = new Mat();
+        Core.magnitude(planes.get(0), planes.get(1), mag);
+        Core.add(mag, Scalar.all(1e-12), mag);
+        Core.divide(planes.get(0), mag, planes.get(0));
+        Core.divide(planes.get(1), mag, planes.get(1));
+        Core.merge(planes, cross);
+
+        Mat corr = new Mat();
+        Core.idft(cross, corr, Core.DFT_REAL_OUTPUT | Core.DFT_SCALE, 0);
+        Core.MinMaxLocResult mm = Core.minMaxLoc(corr);
+        int px = (int) mm.maxLoc.x;
+        int py = (int) mm.maxLoc.y;
+
+        // Sub-pixel refinement: parabola through the peak and its (circular) neighbours
+        double c0 = mm.maxVal;
+        double sx = parabolicOffset(at(corr, px - 1, py), c0, at(corr, px + 1, py));
+        double sy = parabolicOffset(at(corr, px, py - 1), c0, at(corr, px, py + 1));
+
+        // The correlation peak sits at -d (mod size)
+        double dx = -(px + sx);
+        double dy = -(py + sy);
+        if (dx < -dftWidth / 2.0) dx += dftWidth;
+        if (dy < -dftHeight / 2.0) dy += dftHeight;
+
+        spec.release(); cross.release(); mag.release(); corr.release();
+        for (Mat m : planes) m.release();
+        return new double[]{dx, dy, c0};
+    }
+
+    public void release() {
+        window.release();
+        refSpectrum.release();
+    }
+
+    // Mean-removed, Hanning-windowed, zero-padded complex spectrum
+    private Mat spectrum(Mat src) {
+        Mat f = new Mat();
+        src.convertTo(f, CvType.CV_32F);
+        Core.subtract(f, Core.mean(f), f);
+        Core.multiply(f, window, f);
+        Mat padded = new Mat();
+        Core.copyMakeBorder(f, padded, 0, dftHeight - height, 0, dftWidth - width, Core.BORDER_CONSTANT, Scalar.all(0));
+        Mat spec = new Mat();
+        Core.dft(padded, spec, Core.DFT_COMPLEX_OUTPUT, 0);
+        f.release(); padded.release();
+        return spec;
+    }
+
+    private double at(Mat corr, int x, int y) {
+        x = (x + dftWidth) % dftWidth;
+        y = (y + dftHeight) % dftHeight;
+        return corr.get(y, x)[0];
+    }
+
+    private static double parabolicOffset(double left, double center, double right) {
+        double denom = left - 2.0 * center + right;
+        if (denom >= 0.0) return 0.0;
+        double offset = 0.5 * (left - right) / denom;
+        return Math.max(-0.5, Math.min(0.5, offset));
+    }
+}
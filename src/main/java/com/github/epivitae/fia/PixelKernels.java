@@ -0,0 +1,36 @@
+package com.github.epivitae.fia;
+
+/**
+ * SIMD versions of the Legacy engine's whole-image loops (see {@link LegacyAligner}). Arrays are row-major
+ * float pixels; the arithmetic matches the scalar loops up to float rounding. Implementations are stateless
+ * and thread-safe. The Java 8 build has none; see {@link VectorSupport}.
+ */
+interface PixelKernels {
+
+    /** Sum of a[i] * b[i] over the first n elements. */
+    double dotSum(float[] a, float[] b, int n);
+
+    /** out[i] = a[i] * b[i] for the first n elements. */
+    void dot(float[] a, float[] b, float[] out, int n);
+
+    /** Central x difference (one-sided at the left and right edges). */
+    void dx(float[] in, float[] out, int width, int height);
+
+    /** Central y difference (one-sided at the top and bottom edges). */
+    void dy(float[] in, float[] out, int width, int height);
+
+    /** Sobel gradient magnitude of the interior; the one-pixel border of out is left untouched. */
+    void gradient(float[] in, float[] out, int width, int height);
+
+    /**
+     * Halves a NaN-free image (every second pixel of every second row, what bilinear resampling at exactly
+     * 2x gives). Returns false, writing nothing, if the sizes are not exactly 2:1 or the image has NaNs.
+     */
+    boolean halve(float[] in, int width, int height, float[] out, int widthOut, int heightOut);
+
+    /** Fused translation residual of a NaN-free frame (see LegacyAligner.residualTranslation); returns the RMSE. */
+    double residualTranslation(float[] pixels, float[] ref, float[] dxRef, float[] dyRef, int width, int height, double tx, double ty, double[] dp);
+
+    /** Fused affine residual of a NaN-free frame; a = {a00, a01, a02, a10, a11, a12} is the source mapping. Returns the RMSE. */
+    double residualAffine(float[] pixels, float[] ref, float[][] sd, int width, int height, double[] a, double[] dp);
+}
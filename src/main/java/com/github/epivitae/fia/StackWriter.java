@@ -0,0 +1,225 @@
+package com.github.epivitae.fia;
+
+import ij.ImageJ;
+import ij.io.FileInfo;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams an aligned stack to disk as an uncompressed ImageJ TIFF or, for a .raw path, as headerless little-endian data.
+ * The layout depends only on the geometry, so the header, the ImageJ description and every IFD are written
+ * up front and each page has a fixed offset; pages can then be written in any order as frames finish.
+ * Past 4 GB the file takes ImageJ's large-file layout, like its own TiffEncoder: one IFD for the first page, the
+ * page count in the description (images=) and all pages back to back, which ImageJ's TiffDecoder reads at any size.
+ * put() hands a page to the writer threads through a bounded queue and blocks while it is full, so a slow
+ * disk throttles the aligner instead of filling the heap. Each writer thread packs pages into its own direct
+ * buffer and writes it at the page's offset with a positional FileChannel write.
+ */
+public class StackWriter {
+
+    private static final short SHORT = 3, LONG = 4, ASCII = 2;
+
+    private static class Page {
+        final int n; final Object pixels;
+        Page(int n, Object pixels) { this.n = n; this.pixels = pixels; }
+    }
+    private static final Page END = new Page(0, null);
+
+    private final String path;
+    private final int width, height, bitDepth, frameBytes, nImages;
+    private final boolean raw, large;
+    private final String description;
+    private final long dataOffset;
+    private final FileChannel channel;
+    private final BlockingQueue<Page> queue;
+    private final Thread[] threads;
+    private final AtomicLong busyNanos = new AtomicLong(), bytesWritten = new AtomicLong();
+    private volatile IOException failure;
+
+    /**
+     * @param threads  writer threads
+     * @param capacity pages that may wait in the queue before put() blocks
+     */
+    public StackWriter(String path, int width, int height, int bitDepth, int channels, int slices, int frames, int threads, int capacity) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) throw new IOException("Only 8-bit, 16-bit and 32-bit stacks can be streamed");
+        this.path = path; this.width = width; this.height = height; this.bitDepth = bitDepth;
+        frameBytes = width * height * (bitDepth / 8);
+        nImages = channels * slices * frames;
+        raw = path.toLowerCase(Locale.ROOT).endsWith(".raw");
+        description = description(channels, slices, frames);
+
+        // 32-bit TIFF offsets can't address pages past 4 GB: then only the first page gets an IFD
+        large = !raw && align(8 + even(description.length() + 1) + ifdBytes(nImages)) + (long) nImages * frameBytes > 0xFFFFFFFFL;
+        dataOffset = raw ? 0 : align(8 + even(description.length() + 1) + ifdBytes(large ? 1 : nImages));
+
+        channel = new RandomAccessFile(path, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            if (!raw) writeHeader();
+        } catch (IOException e) { channel.close(); throw e; }
+
+        queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.threads = new Thread[Math.max(1, threads)];
+        for (int i=0; i<this.threads.length; i++) {
+            this.threads[i] = new Thread(this::drain, "FIA-Writer-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /** Queues page n (1-based) for writing, blocking while the queue is full. ip's pixels must not change afterwards. */
+    public void put(int n, ImageProcessor ip) throws IOException, InterruptedException {
+        if (failure != null) throw failure;
+        queue.put(new Page(n, ip.getPixels()));
+    }
+
+    /** Writes the queued pages and closes the file. */
+    public void close() throws IOException {
+        finish();
+        if (failure != null) throw failure;
+    }
+
+    /** Drops queued pages and closes the file, leaving it incomplete. */
+    public void abort() {
+        queue.clear();
+        try { finish(); } catch (IOException e) {}
+    }
+
+    /** Whether the file has ImageJ's large-file layout (one IFD, past 4 GB). */
+    public boolean isLarge() { return large; }
+    public int threads() { return threads.length; }
+    public int queued() { return queue.size(); }
+    public int capacity() { return queue.size() + queue.remainingCapacity(); }
+    public long bytesWritten() { return bytesWritten.get(); }
+    /** Time the writer threads spent packing and writing, summed over threads. */
+    public long busyNanos() { return busyNanos.get(); }
+
+    /** Geometry of the written data, for mapping it back in (e.g. with MappedStack). */
+    public FileInfo fileInfo() {
+        FileInfo fi = new FileInfo();
+        File f = new File(path);
+        fi.fileName = f.getName(); fi.directory = f.getParent() + File.separator;
+        fi.width = width; fi.height = height; fi.nImages = nImages;
+        fi.fileType = bitDepth == 8 ? FileInfo.GRAY8 : (bitDepth == 16 ? FileInfo.GRAY16_UNSIGNED : FileInfo.GRAY32_FLOAT);
+        fi.intelByteOrder = true;
+        fi.longOffset = dataOffset;
+        fi.description = description;
+        return fi;
+    }
+
+    private void finish() throws IOException {
+        boolean interrupted = false;
+        for (int i=0; i<threads.length; i++) {
+            while (true) { try { queue.put(END); break; } catch (InterruptedException e) { interrupted = true; } }
+        }
+        for (Thread t : threads) {
+            while (t.isAlive()) { try { t.join(); } catch (InterruptedException e) { interrupted = true; } }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        channel.close();
+    }
+
+    // Writer thread: packs pages into a direct buffer and writes them at their offsets. After a failure it keeps
+    // taking pages so put() never blocks forever; the failure is reported by the next put() or by close().
+    private void drain() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            Page p;
+            try { p = queue.take(); } catch (InterruptedException e) { return; }
+            if (p == END) return;
+            if (failure != null) continue;
+            long t0 = System.nanoTime();
+            try {
+                buf.clear();
+                if (p.pixels instanceof byte[]) buf.put((byte[]) p.pixels);
+                else if (p.pixels instanceof short[]) buf.asShortBuffer().put((short[]) p.pixels);
+                else buf.asFloatBuffer().put((float[]) p.pixels);
+                buf.clear();
+                long pos = dataOffset + (long) (p.n - 1) * frameBytes;
+                while (buf.hasRemaining()) pos += channel.write(buf, pos);
+                bytesWritten.addAndGet(frameBytes);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Can't write page " + p.n + " of " + path + ": " + e, e);
+            }
+            busyNanos.addAndGet(System.nanoTime() - t0);
+        }
+    }
+
+    // Header, description and all IFDs, written in order through a heap buffer
+    private void writeHeader() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        long descOffset = 8, ifdOffset = 8 + even(description.length() + 1);
+        b.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) ifdOffset);
+        byte[] desc = description.getBytes(StandardCharsets.US_ASCII);
+        b.put(desc).put((byte) 0);
+        if ((desc.length + 1) % 2 != 0) b.put((byte) 0);
+
+        long pos = 0;
+        int ifds = large ? 1 : nImages;
+        for (int k=0; k<ifds; k++) {
+            if (b.remaining() < 512) { b.flip(); pos = flush(b, pos); b.clear(); }
+            boolean first = k == 0;
+            long next = (k == ifds - 1) ? 0 : ifdOffset + ifdSize(first);
+            b.putShort((short) (first ? 12 : 11));
+            entry(b, 254, LONG, 1, 0);
+            entry(b, 256, LONG, 1, width);
+            entry(b, 257, LONG, 1, height);
+            entry(b, 258, SHORT, 1, bitDepth);
+            entry(b, 259, SHORT, 1, 1);
+            entry(b, 262, SHORT, 1, 1);
+            if (first) entry(b, 270, ASCII, desc.length + 1, descOffset);
+            entry(b, 273, LONG, 1, dataOffset + (long) k * frameBytes);
+            entry(b, 277, SHORT, 1, 1);
+            entry(b, 278, LONG, 1, height);
+            entry(b, 279, LONG, 1, frameBytes);
+            entry(b, 339, SHORT, 1, bitDepth == 32 ? 3 : 1);
+            b.putInt((int) next);
+            ifdOffset = next;
+        }
+        b.flip(); flush(b, pos);
+    }
+
+    private long flush(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) pos += channel.write(b, pos);
+        return pos;
+    }
+
+    private void entry(ByteBuffer b, int tag, short type, int count, long value) {
+        b.putShort((short) tag).putShort(type).putInt(count);
+        if (type == SHORT) b.putShort((short) value).putShort((short) 0);
+        else b.putInt((int) value);
+    }
+
+    private static int ifdSize(boolean first) { return 2 + 12 * (first ? 12 : 11) + 4; }
+
+    /** Bytes of the first ifds IFDs. */
+    private static long ifdBytes(int ifds) { return ifdSize(true) + (long) (ifds - 1) * ifdSize(false); }
+
+    private String description(int channels, int slices, int frames) {
+        StringBuilder sb = new StringBuilder("ImageJ=").append(ImageJ.VERSION).append('\n');
+        sb.append("images=").append(nImages).append('\n');
+        if (channels > 1) sb.append("channels=").append(channels).append('\n');
+        if (slices > 1) sb.append("slices=").append(slices).append('\n');
+        if (frames > 1) sb.append("frames=").append(frames).append('\n');
+        if (channels > 1 || frames > 1) sb.append("hyperstack=true\n");
+        return sb.append("loop=false\n").toString();
+    }
+
+    private static long even(long n) { return (n + 1) & ~1L; }
+
+    // Pixel data starts on a 16-byte boundary
+    private static long align(long n) { return (n + 15) & ~15L; }
+}
@@ -0,0 +1,124 @@
+package com.github.epivitae.fia;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dense optical flow over a grid of overlapping tiles.
+ * The frame is split into a grid of cores; each tile is its core grown by the overlap on every side.
+ * Flows are solved per tile and blended with linear ramps across the overlaps. The ramps of neighbouring
+ * tiles sum to one, so the blended field is seamless without normalisation.
+ * Tiles can be solved in any order and in parallel (each writes only its own flow); blend() reads
+ * only the tiles intersecting the requested region, so rows of tiles can be solved and released as a
+ * band moves down the frame.
+ */
+public class TiledFlow {
+
+    /** Computes the flow of curr against ref (same size, 8-bit) into flow (CV_32FC2). */
+    public interface Solver {
+        void calc(Mat ref, Mat curr, Mat flow);
+    }
+
+    private final int width, height, cols, rows, overlap;
+    private final int[] xs, ys; // Core boundaries: core (i, j) is [xs[i], xs[i+1]) x [ys[j], ys[j+1])
+    private final Mat[] flows;
+
+    /**
+     * @param tileSize approximate core size; the overlap is tileSize / 8, capped at half the smallest core
+     */
+    public TiledFlow(int width, int height, int tileSize) {
+        this.width = width; this.height = height;
+        tileSize = Math.max(16, tileSize);
+        cols = Math.max(1, Math.round((float) width / tileSize));
+        rows = Math.max(1, Math.round((float) height / tileSize));
+        xs = new int[cols + 1]; ys = new int[rows + 1];
+        for (int i=0; i<=cols; i++) xs[i] = (int) ((long) i * width / cols);
+        for (int j=0; j<=rows; j++) ys[j] = (int) ((long) j * height / rows);
+        overlap = Math.max(1, Math.min(tileSize / 8, Math.min(width / cols, height / rows) / 2));
+        flows = new Mat[cols * rows];
+    }
+
+    public int cols() { return cols; }
+    public int rows() { return rows; }
+
+    /** Core of tile (i, j): the tiles' cores partition the frame. */
+    public Rect core(int i, int j) { return new Rect(xs[i], ys[j], xs[i+1] - xs[i], ys[j+1] - ys[j]); }
+
+    /** Tile (i, j): its core grown by the overlap, clipped to the frame. */
+    public Rect tile(int i, int j) {
+        int x0 = Math.max(0, xs[i] - overlap), x1 = Math.min(width, xs[i+1] + overlap);
+        int y0 = Math.max(0, ys[j] - overlap), y1 = Math.min(height, ys[j+1] + overlap);
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /** Solves tile (i, j) of curr against ref (full-frame Mats). */
+    public void solve(int i, int j, Mat ref, Mat curr, Solver solver) {
+        Rect r = tile(i, j);
+        Mat flow = new Mat();
+        solver.calc(ref.submat(r), curr.submat(r), flow);
+        flows[j * cols + i] = flow;
+    }
+
+    /** Blended flow over region r of the frame into dst (CV_32FC2, r-sized). Every tile intersecting r must be solved. */
+    public void blend(Rect r, Mat dst) {
+        dst.create(r.height, r.width, CvType.CV_32FC2);
+        dst.setTo(new Scalar(0, 0));
+        Mat weight = new Mat(), weight2 = new Mat(), part = new Mat();
+        List<Mat> planes = new ArrayList<>(2);
+        for (int j=0; j<rows; j++) {
+            for (int i=0; i<cols; i++) {
+                Rect t = tile(i, j);
+                int x0 = Math.max(r.x, t.x), x1 = Math.min(r.x + r.width, t.x + t.width);
+                int y0 = Math.max(r.y, t.y), y1 = Math.min(r.y + r.height, t.y + t.height);
+                if (x0 >= x1 || y0 >= y1) continue;
+                Mat flow = flows[j * cols + i];
+                if (flow == null) throw new IllegalStateException("Tile (" + i + "," + j + ") is not solved");
+
+                // Separable weight: outer product of the column and row ramps
+                Mat wx = new Mat(1, x1 - x0, CvType.CV_32F); wx.put(0, 0, ramp(x0, x1, xs[i], xs[i+1], width));
+                Mat wy = new Mat(y1 - y0, 1, CvType.CV_32F); wy.put(0, 0, ramp(y0, y1, ys[j], ys[j+1], height));
+                Core.gemm(wy, wx, 1.0, new Mat(), 0.0, weight);
+                planes.clear(); planes.add(weight); planes.add(weight);
+                Core.merge(planes, weight2);
+
+                Core.multiply(flow.submat(y0 - t.y, y1 - t.y, x0 - t.x, x1 - t.x), weight2, part);
+                Mat out = dst.submat(y0 - r.y, y1 - r.y, x0 - r.x, x1 - r.x);
+                Core.add(out, part, out);
+                wx.release(); wy.release();
+            }
+        }
+        weight.release(); weight2.release(); part.release();
+    }
+
+    /** Frees the flows of tile row j. */
+    public void releaseRow(int j) {
+        for (int i=0; i<cols; i++) {
+            Mat flow = flows[j * cols + i];
+            if (flow != null) { flow.release(); flows[j * cols + i] = null; }
+        }
+    }
+
+    public void release() { for (int j=0; j<rows; j++) releaseRow(j); }
+
+    // Weights of pixels [p0, p1) for the tile whose core is [lo, hi): rises over [lo - overlap, lo + overlap),
+    // falls over [hi - overlap, hi + overlap); flat at the frame edges. Neighbouring ramps sum to one.
+    private float[] ramp(int p0, int p1, int lo, int hi, int size) {
+        float[] w = new float[p1 - p0];
+        double span = 2.0 * overlap;
+        for (int p=p0; p<p1; p++) {
+            double c = p + 0.5, v = 1.0;
+            if (lo > 0) v *= clamp((c - (lo - overlap)) / span);
+            if (hi < size) v *= clamp(((hi + overlap) - c) / span);
+            w[p - p0] = (float) v;
+        }
+        return w;
+    }
+
+    private static double clamp(double v) { return v < 0 ? 0 : (v > 1 ? 1 : v); }
+}
@@ -0,0 +1,17 @@
+package com.github.epivitae.fia;
+
+/**
+ * Chooses the {@link PixelKernels} of the Legacy engine. This is the Java 8 version: always the scalar loops.
+ * The jar is multi-release; on Java 17+ the version in src/main/java17 takes its place and returns the
+ * Vector API kernels when the JVM runs with --add-modules jdk.incubator.vector.
+ */
+final class VectorSupport {
+
+    private VectorSupport() {}
+
+    /** SIMD kernels, or null for LegacyAligner's scalar loops. */
+    static PixelKernels kernels() { return null; }
+
+    /** One-line description for the log. */
+    static String describe() { return "scalar (Java " + System.getProperty("java.specification.version") + ")"; }
+}
@@ -0,0 +1,233 @@
+package com.github.epivitae.fia;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the Legacy pixel loops, at the platform's preferred vector width.
+ * Sums run in float lanes per row (or block) and in double across them. Bilinear samples are taken in float
+ * relative to each chunk's integer base, so sample coordinates stay exact to ~1e-5 px on any frame size.
+ * Pixels whose sample point needs edge clamping go through the scalar code.
+ */
+final class VectorKernels implements PixelKernels {
+
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+    private static final int L = F.length();
+    private static final int BLOCK = 4096; // Elements summed in float lanes before a dot product spills to double
+    private static final FloatVector LANES;
+    private static final VectorShuffle<Float> EVEN;
+
+    static {
+        float[] lanes = new float[L]; int[] even = new int[L];
+        for (int i=0; i<L; i++) { lanes[i] = i; even[i] = 2 * i; }
+        LANES = FloatVector.fromArray(F, lanes, 0);
+        // Lanes 2i >= L wrap to exceptional indexes, which rearrange(s, v) takes from the second vector
+        EVEN = VectorShuffle.fromArray(F, even, 0);
+    }
+
+    @Override public String toString() { return "Vector API, " + L + " float lanes (" + F.vectorBitSize() + "-bit)"; }
+
+    @Override
+    public double dotSum(float[] a, float[] b, int n) {
+        double sum = 0.0;
+        int bound = F.loopBound(n), i = 0;
+        while (i < bound) {
+            int end = Math.min(bound, i + BLOCK);
+            FloatVector acc = FloatVector.zero(F);
+            for (; i < end; i += L) acc = FloatVector.fromArray(F, a, i).fma(FloatVector.fromArray(F, b, i), acc);
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < n; ++i) sum += a[i] * b[i];
+        return sum;
+    }
+
+    @Override
+    public void dot(float[] a, float[] b, float[] out, int n) {
+        int bound = F.loopBound(n), i = 0;
+        for (; i < bound; i += L) FloatVector.fromArray(F, a, i).mul(FloatVector.fromArray(F, b, i)).intoArray(out, i);
+        for (; i < n; ++i) out[i] = a[i] * b[i];
+    }
+
+    @Override
+    public void dx(float[] in, float[] out, int width, int height) {
+        for (int y = 0; y < height; ++y) {
+            int r = y * width;
+            out[r] = in[r + 1] - in[r];
+            out[r + width - 1] = in[r + width - 1] - in[r + width - 2];
+            difference(in, r + 2, r, out, r + 1, width - 2, 0.5f);
+        }
+    }
+
+    @Override
+    public void dy(float[] in, float[] out, int width, int height) {
+        difference(in, width, 0, out, 0, width, 1f);
+        difference(in, (height - 1) * width, (height - 2) * width, out, (height - 1) * width, width, 1f);
+        for (int y = 1; y + 1 < height; ++y) difference(in, (y + 1) * width, (y - 1) * width, out, y * width, width, 0.5f);
+    }
+
+    // out[o+i] = (in[a+i] - in[b+i]) * scale; scale is 0.5 or 1, so this is exact like the scalar (double) form
+    private static void difference(float[] in, int a, int b, float[] out, int o, int n, float scale) {
+        int i = 0;
+        for (; i + L <= n; i += L) FloatVector.fromArray(F, in, a + i).sub(FloatVector.fromArray(F, in, b + i)).mul(scale).intoArray(out, o + i);
+        for (; i < n; ++i) out[o + i] = (in[a + i] - in[b + i]) * scale;
+    }
+
+    @Override
+    public void gradient(float[] in, float[] out, int width, int height) {
+        for (int y = 1; y + 1 < height; ++y) {
+            int o = y * width + 1, end = y * width + width - 1;
+            for (; o + L <= end; o += L) {
+                FloatVector p1 = FloatVector.fromArray(F, in, o - width - 1), p2 = FloatVector.fromArray(F, in, o - width), p3 = FloatVector.fromArray(F, in, o - width + 1);
+                FloatVector p4 = FloatVector.fromArray(F, in, o - 1), p6 = FloatVector.fromArray(F, in, o + 1);
+                FloatVector p7 = FloatVector.fromArray(F, in, o + width - 1), p8 = FloatVector.fromArray(F, in, o + width), p9 = FloatVector.fromArray(F, in, o + width + 1);
+                FloatVector a = p2.add(p2).add(p1).add(p3).sub(p8.add(p8)).sub(p7).sub(p9);
+                FloatVector b = p4.add(p4).add(p1).add(p7).sub(p6.add(p6)).sub(p3).sub(p9);
+                a.fma(a, b.mul(b)).sqrt().intoArray(out, o);
+            }
+            for (; o < end; ++o) {
+                double a = in[o - width - 1] + 2.0 * in[o - width] + in[o - width + 1] - in[o + width - 1] - 2.0 * in[o + width] - in[o + width + 1];
+                double b = in[o - width - 1] + 2.0 * in[o - 1] + in[o + width - 1] - in[o - width + 1] - 2.0 * in[o + 1] - in[o + width + 1];
+                out[o] = (float) Math.sqrt(a * a + b * b);
+            }
+        }
+    }
+
+    @Override
+    public boolean halve(float[] in, int width, int height, float[] out, int widthOut, int heightOut) {
+        if (width != 2 * widthOut || height != 2 * heightOut) return false;
+        int n = width * height, bound = F.loopBound(n), i = 0;
+        for (; i < bound; i += L) if (FloatVector.fromArray(F, in, i).test(VectorOperators.IS_NAN).anyTrue()) return false;
+        for (; i < n; ++i) if (in[i] != in[i]) return false;
+        for (int y = 0; y < heightOut; ++y) {
+            int r = 2 * y * width, o = y * widthOut, x = 0;
+            for (; x + L <= widthOut; x += L) FloatVector.fromArray(F, in, r + 2 * x).rearrange(EVEN, FloatVector.fromArray(F, in, r + 2 * x + L)).intoArray(out, o + x);
+            for (; x < widthOut; ++x) out[o + x] = in[r + 2 * x];
+        }
+        return true;
+    }
+
+    @Override
+    public double residualTranslation(float[] pixels, float[] ref, float[] dxRef, float[] dyRef, int width, int height, double tx, double ty, double[] dp) {
+        // Inside [x0, x1) x [y0, y1) the sample point needs no clamping and its bilinear weights are the same everywhere
+        int x0 = 0; while (x0 < width && x0 + tx < 0.0) ++x0;
+        int x1 = width; while (x1 > x0 && x1 - 1 + tx >= width - 1.0) --x1;
+        int y0 = 0; while (y0 < height && y0 + ty < 0.0) ++y0;
+        int y1 = height; while (y1 > y0 && y1 - 1 + ty >= height - 1.0) --y1;
+        int ix = (int) Math.floor(tx), iy = (int) Math.floor(ty);
+        FloatVector fx = FloatVector.broadcast(F, (float) (tx - ix)), fy = FloatVector.broadcast(F, (float) (ty - iy));
+
+        double sq = 0.0, sx = 0.0, sy = 0.0;
+        for (int p = 0, y = 0; y < height; ++y, p += width) {
+            boolean inside = y >= y0 && y < y1;
+            int a = inside ? x0 : width, b = inside ? x1 : width;
+            double yy = y + ty;
+            for (int x = 0; x < a; ++x) {
+                float e = (float) interpolateFinite(pixels, width, height, x + tx, yy) - ref[p + x];
+                sq += e * e; sx += dxRef[p + x] * e; sy += dyRef[p + x] * e;
+            }
+            if (inside) {
+                int src = (y + iy) * width + ix, x = a;
+                FloatVector vsq = FloatVector.zero(F), vsx = vsq, vsy = vsq;
+                for (; x + L <= b; x += L) {
+                    FloatVector ll = FloatVector.fromArray(F, pixels, src + x), lr = FloatVector.fromArray(F, pixels, src + x + 1);
+                    FloatVector ul = FloatVector.fromArray(F, pixels, src + x + width), ur = FloatVector.fromArray(F, pixels, src + x + width + 1);
+                    FloatVector lo = lr.sub(ll).fma(fx, ll), up = ur.sub(ul).fma(fx, ul);
+                    FloatVector e = up.sub(lo).fma(fy, lo).sub(FloatVector.fromArray(F, ref, p + x));
+                    vsq = e.fma(e, vsq);
+                    vsx = FloatVector.fromArray(F, dxRef, p + x).fma(e, vsx);
+                    vsy = FloatVector.fromArray(F, dyRef, p + x).fma(e, vsy);
+                }
+                sq += vsq.reduceLanes(VectorOperators.ADD); sx += vsx.reduceLanes(VectorOperators.ADD); sy += vsy.reduceLanes(VectorOperators.ADD);
+                for (; x < b; ++x) {
+                    float e = (float) interpolateFinite(pixels, width, height, x + tx, yy) - ref[p + x];
+                    sq += e * e; sx += dxRef[p + x] * e; sy += dyRef[p + x] * e;
+                }
+            }
+            for (int x = b; x < width; ++x) {
+                float e = (float) interpolateFinite(pixels, width, height, x + tx, yy) - ref[p + x];
+                sq += e * e; sx += dxRef[p + x] * e; sy += dyRef[p + x] * e;
+            }
+        }
+        dp[0] = sx; dp[1] = sy;
+        return Math.sqrt(sq / pixels.length);
+    }
+
+    @Override
+    public double residualAffine(float[] pixels, float[] ref, float[][] sd, int width, int height, double[] a, double[] dp) {
+        float[] sd0 = sd[0], sd1 = sd[1], sd2 = sd[2], sd3 = sd[3], sd4 = sd[4], sd5 = sd[5];
+        double a00 = a[0], a01 = a[1], a02 = a[2], a10 = a[3], a11 = a[4], a12 = a[5];
+        // Per-chunk offsets from the chunk's integer base stay within +-32 px, so truncation after a +32 shift is floor()
+        boolean vectorized = Math.abs(a00) * L < 31 && Math.abs(a10) * L < 31;
+        int[] index = new int[L];
+        double sq = 0.0, s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0;
+        for (int p = 0, y = 0; y < height; ++y, p += width) {
+            double bx = a01 * y + a02, by = a11 * y + a12;
+            FloatVector vsq = FloatVector.zero(F), v0 = vsq, v1 = vsq, v2 = vsq, v3 = vsq, v4 = vsq, v5 = vsq;
+            int x = 0;
+            for (; vectorized && x + L <= width; x += L) {
+                double cx = a00 * x + bx, cy = a10 * x + by;
+                double fcx = Math.floor(cx), fcy = Math.floor(cy);
+                FloatVector rx = LANES.fma((float) a00, (float) (cx - fcx)).add(32f), ry = LANES.fma((float) a10, (float) (cy - fcy)).add(32f);
+                IntVector kx = (IntVector) rx.convert(VectorOperators.F2I, 0), ky = (IntVector) ry.convert(VectorOperators.F2I, 0);
+                IntVector xi = kx.add((int) fcx - 32), yi = ky.add((int) fcy - 32);
+                VectorMask<Integer> inside = xi.compare(VectorOperators.GE, 0).and(xi.compare(VectorOperators.LT, width - 1))
+                        .and(yi.compare(VectorOperators.GE, 0)).and(yi.compare(VectorOperators.LT, height - 1));
+                if (!inside.allTrue()) {
+                    // Clamped at the frame edge: scalar for this chunk
+                    for (int k = x; k < x + L; ++k) {
+                        float e = (float) interpolateFinite(pixels, width, height, a00 * k + bx, a10 * k + by) - ref[p + k];
+                        sq += e * e;
+                        s0 += sd0[p + k] * e; s1 += sd1[p + k] * e; s2 += sd2[p + k] * e;
+                        s3 += sd3[p + k] * e; s4 += sd4[p + k] * e; s5 += sd5[p + k] * e;
+                    }
+                    continue;
+                }
+                FloatVector wx = rx.sub((FloatVector) kx.convert(VectorOperators.I2F, 0)), wy = ry.sub((FloatVector) ky.convert(VectorOperators.I2F, 0));
+                yi.mul(width).add(xi).intoArray(index, 0);
+                FloatVector ll = FloatVector.fromArray(F, pixels, 0, index, 0), lr = FloatVector.fromArray(F, pixels, 1, index, 0);
+                FloatVector ul = FloatVector.fromArray(F, pixels, width, index, 0), ur = FloatVector.fromArray(F, pixels, width + 1, index, 0);
+                FloatVector lo = lr.sub(ll).fma(wx, ll), up = ur.sub(ul).fma(wx, ul);
+                FloatVector e = up.sub(lo).fma(wy, lo).sub(FloatVector.fromArray(F, ref, p + x));
+                vsq = e.fma(e, vsq);
+                v0 = FloatVector.fromArray(F, sd0, p + x).fma(e, v0); v1 = FloatVector.fromArray(F, sd1, p + x).fma(e, v1);
+                v2 = FloatVector.fromArray(F, sd2, p + x).fma(e, v2); v3 = FloatVector.fromArray(F, sd3, p + x).fma(e, v3);
+                v4 = FloatVector.fromArray(F, sd4, p + x).fma(e, v4); v5 = FloatVector.fromArray(F, sd5, p + x).fma(e, v5);
+            }
+            sq += vsq.reduceLanes(VectorOperators.ADD);
+            s0 += v0.reduceLanes(VectorOperators.ADD); s1 += v1.reduceLanes(VectorOperators.ADD); s2 += v2.reduceLanes(VectorOperators.ADD);
+            s3 += v3.reduceLanes(VectorOperators.ADD); s4 += v4.reduceLanes(VectorOperators.ADD); s5 += v5.reduceLanes(VectorOperators.ADD);
+            for (; x < width; ++x) {
+                float e = (float) interpolateFinite(pixels, width, height, a00 * x + bx, a10 * x + by) - ref[p + x];
+                sq += e * e;
+                s0 += sd0[p + x] * e; s1 += sd1[p + x] * e; s2 += sd2[p + x] * e;
+                s3 += sd3[p + x] * e; s4 += sd4[p + x] * e; s5 += sd5[p + x] * e;
+            }
+        }
+        dp[0] = s0; dp[1] = s1; dp[2] = s2; dp[3] = s3; dp[4] = s4; dp[5] = s5;
+        return Math.sqrt(sq / pixels.length);
+    }
+
+    // LegacyAligner.interpolateFinite(): bilinear with edge clamping, NaN-free input
+    private static double interpolateFinite(float[] pixels, int width, int height, double x, double y) {
+        if (x < 0.0) x = 0.0;
+        if (x >= width - 1.0) x = width - 1.001;
+        if (y < 0.0) y = 0.0;
+        if (y >= height - 1.0) y = height - 1.001;
+        int xbase = (int)x;
+        int ybase = (int)y;
+        double xFraction = x - xbase;
+        double yFraction = y - ybase;
+        int offset = ybase * width + xbase;
+        double lowerLeft = pixels[offset];
+        double lowerRight = pixels[offset + 1];
+        double upperRight = pixels[offset + width + 1];
+        double upperLeft = pixels[offset + width];
+        double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+        double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+        return lowerAverage + yFraction * (upperAverage - lowerAverage);
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.epivitae.fia;
+
+/**
+ * Chooses the {@link PixelKernels} of the Legacy engine (Java 17+ version of the multi-release jar).
+ * The Vector API kernels are used when the incubator module is present, i.e. the JVM was started with
+ * --add-modules jdk.incubator.vector, unless -Dfia.simd=false. VectorKernels is loaded by name, so a JVM
+ * without the module never links against it.
+ */
+final class VectorSupport {
+
+    private static String status;
+    private static final PixelKernels KERNELS = load();
+
+    private VectorSupport() {}
+
+    private static PixelKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("fia.simd", "true"))) { status = "scalar (disabled by -Dfia.simd=false)"; return null; }
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) { status = "scalar (add --add-modules jdk.incubator.vector to the JVM options for SIMD)"; return null; }
+        try {
+            PixelKernels k = (PixelKernels) Class.forName("com.github.epivitae.fia.VectorKernels").getDeclaredConstructor().newInstance();
+            status = k.toString();
+            return k;
+        } catch (Throwable e) {
+            status = "scalar (Vector API unavailable: " + e + ")";
+            return null;
+        }
+    }
+
+    /** SIMD kernels, or null for LegacyAligner's scalar loops. */
+    static PixelKernels kernels() { return KERNELS; }
+
+    /** One-line description for the log. */
+    static String describe() { return status; }
+}